@@ -0,0 +1,283 @@
+package com.metze.scanner.core;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+//benchmarks each stage of StaffAnalyzer.processImage, removeStaffLines and the whole headless pipeline
+// (Binarizer + processImage + removeStaffLines, the same work as ProcessTask.doInBackground) on the res/raw images.
+// every measured op gets a fresh analyzer with the earlier stages already run, so only the stage itself is timed.
+// reports throughput, latency percentiles and allocated bytes per op for each image size.
+// with --search-threads n the path search runs on n threads (StaffAnalyzer.setParallelSearch), their allocations aren't counted.
+// lives in the core package so it can reach the package private stages. build and run from the repo root with:
+//   javac -d out src/com/metze/scanner/core/*.java bench/src/com/metze/scanner/core/*.java
+//   java -cp out com.metze.scanner.core.StageBenchmark [--images res/raw] [--warmup 2] [--iterations 10] [--stage STABLE_PATHS]
+public class StageBenchmark
+{
+	private static final String USAGE = "usage: StageBenchmark [--images dir] [--warmup n] [--iterations n] [--stage name] [--search-threads n] [--low-memory] [--fixed-point] [--batched] [--packed] [--pyramid factor] [--histogram-seeding spacing] [--convergence-stop] [--banded]";
+
+	public enum Stage
+	{
+		PROJECTION_HIST,
+		LINE_POSITIONS,
+		SPACING_THICKNESS,
+		STABLE_PATHS,
+		REMOVE_STAFF_LINES,
+		PIPELINE
+	}
+
+	private static final ThreadMXBean sThreads = ManagementFactory.getThreadMXBean();
+
+	private int mWarmup;
+	private int mIterations;
+	private ExecutorService mSearchExecutor;
+	private int mSearchThreads;
+	private boolean mLowMemory;
+	private boolean mFixedPoint;
+	private boolean mPacked;
+	private boolean mBatched;
+	private int mPyramidFactor;
+	private int mSeedSpacing;	//-1 for every row as a seed
+	private boolean mConvergenceStop;
+	private boolean mBanded;
+	private SearchOptions mSearchOptions;	//built from the flags above once they are parsed
+
+	public StageBenchmark()
+	{
+		mWarmup = 2;
+		mIterations = 10;
+		mSearchExecutor = null;
+		mSearchThreads = 1;
+		mLowMemory = false;
+		mFixedPoint = false;
+		mPacked = false;
+		mBatched = false;
+		mPyramidFactor = 1;
+		mSeedSpacing = -1;
+		mConvergenceStop = false;
+		mBanded = false;
+		mSearchOptions = new SearchOptions();
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		StageBenchmark bench = new StageBenchmark();
+		File imageDir = new File("res/raw");
+		List<Stage> stages = new ArrayList<Stage>(Arrays.asList(Stage.values()));
+		for(int i=0; i<args.length; ++i)
+		{
+			if(args[i].equals("--images") && i+1 < args.length)
+				imageDir = new File(args[++i]);
+			else if(args[i].equals("--warmup") && i+1 < args.length)
+				bench.mWarmup = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--iterations") && i+1 < args.length)
+				bench.mIterations = Math.max(1, Integer.parseInt(args[++i]));
+			else if(args[i].equals("--stage") && i+1 < args.length)
+			{
+				stages.clear();
+				stages.add(Stage.valueOf(args[++i].toUpperCase(Locale.US)));
+			}
+			else if(args[i].equals("--search-threads") && i+1 < args.length)
+				bench.mSearchThreads = Math.max(1, Integer.parseInt(args[++i]));
+			else if(args[i].equals("--low-memory"))
+				bench.mLowMemory = true;
+			else if(args[i].equals("--fixed-point"))
+				bench.mFixedPoint = true;
+			else if(args[i].equals("--packed"))
+				bench.mPacked = true;
+			else if(args[i].equals("--batched"))
+				bench.mBatched = true;
+			else if(args[i].equals("--pyramid") && i+1 < args.length)
+				bench.mPyramidFactor = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--histogram-seeding") && i+1 < args.length)
+				bench.mSeedSpacing = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--convergence-stop"))
+				bench.mConvergenceStop = true;
+			else if(args[i].equals("--banded"))
+				bench.mBanded = true;
+			else
+			{
+				System.err.println(USAGE);
+				System.exit(1);
+			}
+		}
+
+		//the pyramid search picks its own seeds and runs on one thread, these would be silently ignored
+		if(bench.mPyramidFactor > 1 && (bench.mSeedSpacing >= 0 || bench.mConvergenceStop || bench.mSearchThreads > 1 || bench.mBatched))
+		{
+			System.err.println("--pyramid can't be combined with --histogram-seeding, --convergence-stop, --search-threads or --batched");
+			System.exit(1);
+		}
+
+		//the batched search runs on one thread with float costs and never merges or bands its paths
+		if(bench.mBatched && (bench.mConvergenceStop || bench.mSearchThreads > 1 || bench.mFixedPoint || bench.mBanded))
+		{
+			System.err.println("--batched can't be combined with --convergence-stop, --search-threads, --fixed-point or --banded");
+			System.exit(1);
+		}
+		bench.mSearchOptions = new SearchOptions().setBatchedSearch(bench.mBatched)
+				.setHistogramSeeding(bench.mSeedSpacing >= 0, bench.mSeedSpacing).setConvergenceStop(bench.mConvergenceStop)
+				.setBandedSearch(bench.mBanded).setFixedPointCosts(bench.mFixedPoint).setPyramidSearch(bench.mPyramidFactor);
+
+		File[] images = imageDir.listFiles();
+		if(images == null || images.length == 0)
+		{
+			System.err.println("no images found in " + imageDir);
+			System.exit(1);
+		}
+		Arrays.sort(images);
+
+		System.out.println(String.format(Locale.US, "%-16s %10s %-18s %10s %10s %10s %10s %10s %12s %10s",
+				"image", "size", "stage", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "alloc B/op", "alloc MB/s"));
+		if(bench.mSearchThreads > 1)
+			bench.mSearchExecutor = Executors.newFixedThreadPool(bench.mSearchThreads);
+		try
+		{
+			for(File image : images)
+			{
+				if(!image.getName().toLowerCase(Locale.US).endsWith(".png"))
+					continue;
+				for(Stage stage : stages)
+				{
+					bench.run(image, stage);
+				}
+			}
+		}
+		finally
+		{
+			if(bench.mSearchExecutor != null)
+				bench.mSearchExecutor.shutdownNow();
+		}
+	}
+
+	public void run(File imageFile, Stage stage) throws IOException
+	{
+		BufferedImage image = ImageIO.read(imageFile);
+		final int w = image.getWidth();
+		final int h = image.getHeight();
+		final int[] argb = image.getRGB(0, 0, w, h, null, 0, w);
+		final byte[] binary = Binarizer.binarize(argb, w, h);
+
+		long[] nanos = new long[mIterations];
+		long[] allocated = new long[mIterations];
+		for(int i=-mWarmup; i<mIterations; ++i)
+		{
+			StaffAnalyzer staffInfo = (stage == Stage.PIPELINE) ? null : prepare(binary, w, h, stage);
+
+			long allocStart = allocatedBytes();
+			long start = System.nanoTime();
+			switch(stage)
+			{
+				case PROJECTION_HIST:
+					staffInfo.calcHorizontalProjHist();
+					break;
+				case LINE_POSITIONS:
+					staffInfo.findStaffLinePositions();
+					break;
+				case SPACING_THICKNESS:
+					staffInfo.calcStaffSpacingAndThickness();
+					break;
+				case STABLE_PATHS:
+					staffInfo.findStablePaths();
+					break;
+				case REMOVE_STAFF_LINES:
+					staffInfo.removeStaffLines();
+					break;
+				case PIPELINE:
+					staffInfo = configure(new StaffAnalyzer(Binarizer.binarize(argb, w, h), w, h));
+					staffInfo.processImage();
+					staffInfo.removeStaffLines();
+					break;
+			}
+			long elapsed = System.nanoTime() - start;
+			long allocEnd = allocatedBytes();
+
+			if(i >= 0)
+			{
+				nanos[i] = elapsed;
+				allocated[i] = (allocStart < 0) ? -1 : allocEnd - allocStart;
+			}
+		}
+
+		report(imageFile.getName(), w + "x" + h, stage, nanos, allocated);
+	}
+
+	//a fresh analyzer on a copy of the pixels with every stage before the measured one already run
+	private StaffAnalyzer prepare(byte[] binary, int w, int h, Stage stage)
+	{
+		StaffAnalyzer staffInfo = configure(new StaffAnalyzer(Arrays.copyOf(binary, binary.length), w, h));
+		if(mPacked)
+			staffInfo.setPackedImage(PackedBinaryImage.pack(binary, w, h));	//packing is setup, it belongs to the binarizer
+		if(stage.ordinal() > Stage.PROJECTION_HIST.ordinal())
+			staffInfo.calcHorizontalProjHist();
+		if(stage.ordinal() > Stage.LINE_POSITIONS.ordinal())
+			staffInfo.findStaffLinePositions();
+		if(stage.ordinal() > Stage.SPACING_THICKNESS.ordinal())
+			staffInfo.calcStaffSpacingAndThickness();
+		if(stage.ordinal() > Stage.STABLE_PATHS.ordinal())
+			staffInfo.findStablePaths();
+		return staffInfo;
+	}
+
+	private StaffAnalyzer configure(StaffAnalyzer staffInfo)
+	{
+		staffInfo.setLowMemorySearch(mLowMemory);
+		if(mSearchExecutor != null)
+			staffInfo.setParallelSearch(mSearchExecutor, mSearchThreads);
+		staffInfo.setPackedImage(mPacked);
+		staffInfo.setSearchOptions(mSearchOptions);
+		return staffInfo;
+	}
+
+	private static void report(String image, String size, Stage stage, long[] nanos, long[] allocated)
+	{
+		long[] sorted = Arrays.copyOf(nanos, nanos.length);
+		Arrays.sort(sorted);
+		long totalNanos = 0;
+		for(long n : nanos)
+			totalNanos += n;
+
+		long totalAlloc = 0;
+		for(long a : allocated)
+			totalAlloc += a;
+		boolean allocKnown = allocated[0] >= 0;
+
+		double opsPerSec = nanos.length/(totalNanos/1e9);
+		double allocPerOp = allocKnown ? (double)totalAlloc/allocated.length : -1;
+		double allocRate = allocKnown ? (totalAlloc/(1024.0*1024.0))/(totalNanos/1e9) : -1;
+
+		System.out.println(String.format(Locale.US, "%-16s %10s %-18s %10.2f %10.3f %10.3f %10.3f %10.3f %12.0f %10.1f",
+				image, size, stage, opsPerSec,
+				percentile(sorted, 0.50)/1e6, percentile(sorted, 0.90)/1e6, percentile(sorted, 0.99)/1e6, sorted[sorted.length-1]/1e6,
+				allocPerOp, allocRate));
+	}
+
+	//nearest rank percentile of sorted samples
+	private static long percentile(long[] sorted, double p)
+	{
+		int rank = (int)Math.ceil(p*sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length-1, rank-1))];
+	}
+
+	//bytes allocated so far by this thread, or -1 if the JVM can't tell us
+	private static long allocatedBytes()
+	{
+		if(sThreads instanceof com.sun.management.ThreadMXBean)
+		{
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)sThreads;
+			if(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+				return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
@@ -2,6 +2,7 @@ package com.metze.scanner;
 
 import android.app.Activity;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
@@ -21,13 +22,18 @@ import android.widget.ImageView;
 import android.widget.RelativeLayout;
 
 import com.metze.musicscanner.R;
+import com.metze.scanner.core.CropRegion;
 
 public class AdjustActivity extends Activity
 {
+	protected static final String TAG = "AdjustActivity";
+	
     private ImageView mImageView;
     CropOverlay mCropOverlay;
     private Bitmap mOriginalBmp;
     private String mImageFilePath;
+    private int mSourceWidth;		//size of the file at mImageFilePath, mOriginalBmp is a subsampled preview of it
+    private int mSourceHeight;
 
     private int mOverlayOffsetY;
     private int mOverlayOffsetX;
@@ -87,6 +93,8 @@ public class AdjustActivity extends Activity
         BitmapFactory.decodeFile(mImageFilePath, bmOptions);
         int photoW = bmOptions.outWidth;
         int photoH = bmOptions.outHeight;
+        mSourceWidth = photoW;
+        mSourceHeight = photoH;
 
         // Determine how much to scale down the image
         int scaleFactor = Math.min(photoW/mImageView.getWidth(), photoH/mImageView.getHeight());
@@ -119,21 +127,40 @@ public class AdjustActivity extends Activity
         finish();
     }
 
-    private Bitmap doCrop()
+    //maps the crop overlay, which lies over the image view, through the view's image matrix to an image of the given size.
+    // sourcePerPreviewPixel is how many pixels of that image one pixel of mOriginalBmp stands for
+    private CropRegion getCropRegion(float sourcePerPreviewPixel, int sourceWidth, int sourceHeight)
     {
     	RectF crop = mCropOverlay.getCropRectangle();
-    	int x = (int) Math.min(Math.max(0, crop.left), mCropOverlay.getWidth()-1);
-    	int y = (int) Math.min(Math.max(0, crop.top ), mCropOverlay.getHeight()-1);
-
-    	System.out.println("crop x= "+x+", y= "+y);
-    	return Bitmap.createBitmap(mOriginalBmp, x, y, (int)crop.width(), (int)crop.height());
+    	float[] values = new float[9];
+    	mImageView.getImageMatrix().getValues(values);
+    	return CropRegion.fromView(crop.left, crop.top, crop.right, crop.bottom,
+    			values[Matrix.MTRANS_X], values[Matrix.MTRANS_Y], values[Matrix.MSCALE_X], values[Matrix.MSCALE_Y],
+    			sourcePerPreviewPixel, sourceWidth, sourceHeight);
     }
     
+    //crops the in memory picture, for pictures that didn't come from a file
+    private Bitmap doCrop()
+    {
+    	CropRegion region = getCropRegion(1, mOriginalBmp.getWidth(), mOriginalBmp.getHeight());
+    	Log.i(TAG, "crop "+region);
+    	return Bitmap.createBitmap(mOriginalBmp, region.getLeft(), region.getTop(), region.getWidth(), region.getHeight());
+    }
     
     public void acceptPic(View view)
     {
         ProcessTask task = new ProcessTask();
-        task.setImageToProcess(mOriginalBmp);
+        if(mImageFilePath != null && mSourceWidth > 0)
+        {
+        	//only the cropped part of the file is decoded, in the task
+        	CropRegion region = getCropRegion((float)mSourceWidth/mOriginalBmp.getWidth(), mSourceWidth, mSourceHeight);
+        	Log.i(TAG, "crop "+region+" of "+mSourceWidth+"x"+mSourceHeight);
+        	task.setImageToProcess(mImageFilePath, region);
+        	task.setSharedBuffer(true);	//a full size camera crop is where the extra image copies hurt most
+        }
+        else
+        	task.setImageToProcess(doCrop());
+        task.setDumpMetrics((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
         task.execute();
         finish();
     }
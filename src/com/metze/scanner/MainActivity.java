@@ -9,12 +9,14 @@ import org.opencv.android.OpenCVLoader;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Debug;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
@@ -56,6 +58,33 @@ public class MainActivity extends Activity
     {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        
+        //let the analysis core log through android
+        com.metze.scanner.core.Log.setSink(new com.metze.scanner.core.Log.Sink() {
+            @Override
+            public void i(String tag, String msg) {
+                Log.i(tag, msg);
+            }
+        });
+        
+        //allocation counting slows the runtime down, so stage allocations are only measured in debug builds
+        if((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0)
+        {
+        	Debug.startAllocCounting();
+        	com.metze.scanner.core.PipelineMetrics.setAllocationCounter(new com.metze.scanner.core.PipelineMetrics.AllocationCounter() {
+        		@Override
+        		public long allocatedBytes() {
+        			return Debug.getThreadAllocSize();
+        		}
+        	});
+        }
+    }
+    
+    @Override
+    public void onLowMemory()
+    {
+    	super.onLowMemory();
+    	ProcessTask.releaseWorkspace();
     }
     
     public void choosePicture(View view)
@@ -72,6 +101,12 @@ public class MainActivity extends Activity
         startActivityForResult(takePictureIntent, TAKE_PIC_CODE);
     }
 
+    //continuous staff detection on the camera preview
+    public void livePreview(View view)
+    {
+    	startActivity(new Intent(this, PreviewActivity.class));
+    }
+
     private void adjustPicture(Bitmap bmp)
     {
     	Intent adjustImageIntent = new Intent(this, AdjustActivity.class);
@@ -0,0 +1,245 @@
+package com.metze.scanner;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ImageFormat;
+import android.graphics.Paint;
+import android.hardware.Camera;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.View;
+import android.view.Window;
+import android.widget.RelativeLayout;
+import android.widget.TextView;
+
+import com.metze.musicscanner.R;
+import com.metze.scanner.core.FrameProcessor;
+
+//live staff detection on the camera preview. preview frames go to a FrameProcessor, which only works on the newest
+// one and drops the rest, and the staff lines it finds are drawn over the preview
+public class PreviewActivity extends Activity implements SurfaceHolder.Callback, Camera.PreviewCallback, FrameProcessor.Listener
+{
+	protected static final String TAG = "PreviewActivity";
+
+	//a preview frame every 33ms at 30fps, so anything slower than that is shrunk further
+	private static final long FRAME_BUDGET_MILLIS = 33;
+	private static final int MIN_SCALE = 2;
+
+	private SurfaceView mSurfaceView;
+	private StaffOverlay mOverlay;
+	private TextView mStatsView;
+
+	private Camera mCamera;
+	private FrameProcessor mProcessor;
+	private boolean mSurfaceReady;
+	private int mPreviewWidth;
+	private int mPreviewHeight;
+
+	//frames per second over the last second of results, only touched on the worker thread
+	private long mWindowStart;
+	private int mWindowFrames;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+
+        requestWindowFeature(Window.FEATURE_NO_TITLE);
+        setContentView(R.layout.activity_preview);
+        mSurfaceView = (SurfaceView)findViewById(R.id.previewSurface);
+        mStatsView = (TextView)findViewById(R.id.previewStats);
+
+        RelativeLayout layout = (RelativeLayout)findViewById(R.id.container);
+        mOverlay = new StaffOverlay(this);
+        layout.addView(mOverlay, 1, mSurfaceView.getLayoutParams());	//between the preview and the stats
+
+        SurfaceHolder holder = mSurfaceView.getHolder();
+        holder.addCallback(this);
+        holder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);	//needed before honeycomb
+        mSurfaceReady = false;
+    }
+
+    @Override
+    protected void onResume()
+    {
+    	super.onResume();
+
+    	mWindowStart = System.nanoTime();
+    	mWindowFrames = 0;
+    	mProcessor = new FrameProcessor(this, FRAME_BUDGET_MILLIS, MIN_SCALE);
+    	mProcessor.start();
+
+    	try
+    	{
+    		mCamera = Camera.open();
+    	}
+    	catch(RuntimeException e)
+    	{
+    		Log.i(TAG, "camera unavailable: "+e.getMessage());
+    		mCamera = null;
+    		return;
+    	}
+    	if(mSurfaceReady)
+    		startPreview(mSurfaceView.getHolder());
+    }
+
+    @Override
+    protected void onPause()
+    {
+    	if(mCamera != null)
+    	{
+    		mCamera.stopPreview();
+    		mCamera.setPreviewCallbackWithBuffer(null);
+    		mCamera.release();
+    		mCamera = null;
+    	}
+
+    	try
+    	{
+    		mProcessor.stop();
+    	}
+    	catch(InterruptedException e)
+    	{
+    		Thread.currentThread().interrupt();
+    	}
+    	Log.i(TAG, "frames submitted="+mProcessor.getSubmittedFrames()+" processed="+mProcessor.getProcessedFrames()
+    			+" dropped="+mProcessor.getDroppedFrames());
+    	mProcessor = null;
+
+    	super.onPause();
+    }
+
+    private void startPreview(SurfaceHolder holder)
+    {
+    	if(mCamera == null)
+    		return;
+
+    	Camera.Parameters params = mCamera.getParameters();
+    	params.setPreviewFormat(ImageFormat.NV21);
+    	mCamera.setParameters(params);
+    	Camera.Size size = params.getPreviewSize();
+    	mPreviewWidth = size.width;
+    	mPreviewHeight = size.height;
+
+    	//two buffers, so the camera can fill one while the other is being copied into the processor
+    	int bufferSize = mPreviewWidth*mPreviewHeight*ImageFormat.getBitsPerPixel(ImageFormat.NV21)/8;
+    	mCamera.addCallbackBuffer(new byte[bufferSize]);
+    	mCamera.addCallbackBuffer(new byte[bufferSize]);
+    	mCamera.setPreviewCallbackWithBuffer(this);
+
+    	try
+    	{
+    		mCamera.setPreviewDisplay(holder);
+    	}
+    	catch(IOException e)
+    	{
+    		Log.i(TAG, "can't show preview: "+e.getMessage());
+    		return;
+    	}
+    	mCamera.startPreview();
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder)
+    {
+    	mSurfaceReady = true;
+    	startPreview(holder);
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height)
+    {
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder)
+    {
+    	mSurfaceReady = false;
+    	if(mCamera != null)
+    		mCamera.stopPreview();
+    }
+
+    //camera thread. the Y plane at the start of an NV21 frame is the luminance the processor wants,
+    // and submit copies it, so the buffer goes straight back to the camera
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera)
+    {
+    	if(mProcessor != null)
+    		mProcessor.submit(data, mPreviewWidth, mPreviewHeight, System.nanoTime());
+    	camera.addCallbackBuffer(data);
+    }
+
+    //worker thread
+    @Override
+    public void onFrame(final FrameProcessor.FrameResult result)
+    {
+    	++mWindowFrames;
+    	long now = System.nanoTime();
+    	final String stats;
+    	if(now - mWindowStart >= 1000000000L)
+    	{
+    		stats = String.format(Locale.US, "%.1f fps, %d ms, scale %d, %d lines",
+    				mWindowFrames*1e9/(now - mWindowStart), result.getLatencyNanos()/1000000,
+    				result.getScale(), result.getLineRows().length);
+    		mWindowStart = now;
+    		mWindowFrames = 0;
+    	}
+    	else
+    		stats = null;
+
+    	runOnUiThread(new Runnable()
+    	{
+    		@Override
+    		public void run()
+    		{
+    			mOverlay.setResult(result);
+    			if(stats != null)
+    				mStatsView.setText(stats);
+    		}
+    	});
+    }
+
+    //draws the staff lines of the latest frame result, scaled from preview frame rows to view rows
+    private static class StaffOverlay extends View
+    {
+    	private final Paint mLinePaint;
+    	private FrameProcessor.FrameResult mResult;
+
+    	public StaffOverlay(Context context)
+    	{
+    		super(context);
+    		mLinePaint = new Paint();
+    		mLinePaint.setColor(Color.RED);
+    		mLinePaint.setStrokeWidth(2);
+    		mResult = null;
+    	}
+
+    	public void setResult(FrameProcessor.FrameResult result)
+    	{
+    		mResult = result;
+    		invalidate();
+    	}
+
+    	@Override
+    	protected void onDraw(Canvas canvas)
+    	{
+    		super.onDraw(canvas);
+    		if(mResult == null || mResult.getHeight() == 0)
+    			return;
+
+    		float scaleY = (float)getHeight()/mResult.getHeight();
+    		for(int row : mResult.getLineRows())
+    		{
+    			float y = row*scaleY;
+    			canvas.drawLine(0, y, getWidth(), y, mLinePaint);
+    		}
+    	}
+    }
+}
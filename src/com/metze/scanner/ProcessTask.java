@@ -1,67 +1,209 @@
 package com.metze.scanner;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
 
 import org.opencv.core.Core;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.Point;
 import org.opencv.core.Scalar;
-import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.android.Utils;
 import java.lang.Math;
 
+import com.metze.scanner.core.AnalysisResult;
+import com.metze.scanner.core.BilevelWriter;
+import com.metze.scanner.core.Binarizer;
+import com.metze.scanner.core.ContentKey;
+import com.metze.scanner.core.CropRegion;
+import com.metze.scanner.core.OutputQueue;
+import com.metze.scanner.core.PipelineMetrics;
+import com.metze.scanner.core.ResultCache;
+import com.metze.scanner.core.SearchOptions;
+import com.metze.scanner.core.SkewEstimator;
+import com.metze.scanner.core.StaffAnalyzer;
+import com.metze.scanner.core.StaffRenderer;
+import com.metze.scanner.core.StaffResultWriter;
+
 
 public class ProcessTask extends AsyncTask<Double, Integer, Bitmap>
 {
 	protected static final String TAG = "ProcessTask";
+	
+	//results survive the task and the app, so rescanning the same picture skips the whole pipeline
+	private static final long CACHE_MEMORY_BYTES = 16L << 20;
+	private static final long CACHE_DISK_BYTES = 128L << 20;
+	private static ResultCache sResultCache = null;
+	//a crop of a photo file is decoded down to about this many pixels, the analysis gains little above it
+	public static final long MAX_ANALYSIS_PIXELS = 4L << 20;
+	//buffers shared by consecutive tasks, sWorkspaceInUse while a task has them
+	private static ProcessingWorkspace sWorkspace = null;
+	private static boolean sWorkspaceInUse = false;
+	//the output files are encoded and written here, so the next task can start while they are. a short queue, each
+	// job holds a full size bitmap, so a task waits at the end of doInBackground rather than pile up more of them
+	private static final int OUTPUT_QUEUE_LENGTH = 2;
+	private static OutputQueue sOutputQueue = null;
     
 	private Mat mMatToProcess;
 	private Mat mOriginalMat;
 	private byte mPixels[];
+	private ProcessingWorkspace mWorkspace;
 	
     private int mImageWidth;
     private int mImageHeight;
     
     private MusicStaffInfo mStaffInfo;
+    private String mSourcePath;		//set when a region of a file is processed instead of a Bitmap
+    private CropRegion mSourceRegion;
+    private int mSampleSize;
+    private String mCacheKey;
+    private AnalysisResult mResult;
+    private PipelineMetrics mMetrics;
+    private boolean mDumpMetrics;
+    private boolean mUseSharedBuffer;
+    private BilevelWriter.Format mOutputFormat;	//null for png
     
     private Bitmap mReturnBmp;	//for display/debugging
     
     public ProcessTask()
     {
     	mMatToProcess = null;
+    	mWorkspace = null;
     	mStaffInfo = null;
     	mReturnBmp = null;
     	mPixels = null;
     	mImageWidth = 0;
     	mImageHeight = 0;
+    	mSourcePath = null;
+    	mSourceRegion = null;
+    	mSampleSize = 1;
+    	mCacheKey = null;
+    	mResult = null;
+    	mMetrics = new PipelineMetrics();
+    	mDumpMetrics = false;
+    	mUseSharedBuffer = false;
+    	mOutputFormat = null;
     }
 
     @Override
     protected Bitmap doInBackground(Double... doubles) 
     {
     	Log.i(TAG, "doInBackground");
-       // final double thetaRads = doubles[0].doubleValue();
-        
-        //rotateImage(thetaRads);
-        preProcessMat();
-    	mMatToProcess.get(0, 0, mPixels);
+    	//a tilt passed to execute is used as is, otherwise it is estimated from the image
+    	final Double skewAngle = (doubles != null && doubles.length > 0) ? doubles[0] : null;
+    	
+    	Bitmap bmp = analyze(skewAngle);
+    	//queued from here and not from onPostExecute: submit waits while the queue is full, which must not be on the UI thread
+    	if(mResult != null)
+    		queueOutput(bmp);
+    	return bmp;
+    }
+    
+    private Bitmap analyze(Double skewAngle)
+    {
+    	//a file region is keyed by the file and region, so a cache hit doesn't have to decode anything
+    	mCacheKey = (mSourcePath != null) ? cacheKeyFor(mSourcePath, mSourceRegion, mSampleSize) : cacheKeyFor(mReturnBmp);
+    	if(skewAngle != null)
+    		mCacheKey = new ContentKey().addString(mCacheKey).addString("skew=" + skewAngle).finish();
     	
-        mStaffInfo = new MusicStaffInfo(mPixels, mImageWidth, mImageHeight);
-        mStaffInfo.processImage();
-        mStaffInfo.removeStaffLines();
-       // removeStaffLines();
+        ResultCache cache = getResultCache();
+        AnalysisResult cached = cache.get(mCacheKey);
+        if(cached != null)
+        {
+        	mResult = cached;
+        	Log.i(TAG, "using cached result");
+        	if(mOutputFormat != null)
+        		return null;	//written from the cleaned pixels, no bitmap needed
+        	int[] argb = StaffRenderer.renderProcessed(cached, null, new Random());
+        	mReturnBmp = Bitmap.createBitmap(cached.getWidth(), cached.getHeight(), Bitmap.Config.ARGB_8888);
+        	mReturnBmp.setPixels(argb, 0, cached.getWidth(), 0, 0, cached.getWidth(), cached.getHeight());
+        	return mReturnBmp;
+        }
+        
+        if(mSourcePath != null)
+        {
+        	mMetrics.startStage("decodeRegion");
+        	mReturnBmp = decodeRegion(mSourcePath, mSourceRegion, mSampleSize);
+        	mMetrics.endStage();
+        	if(mReturnBmp == null)
+        	{
+        		Log.i(TAG, "could not decode "+mSourcePath);
+        		return null;
+        	}
+        	mImageWidth = mReturnBmp.getWidth();
+        	mImageHeight = mReturnBmp.getHeight();
+        }
         
-       // Utils.matToBitmap(mMatToProcess, mReturnBmp, true);
-       // mReturnBmp = mStaffInfo.getStablePathsAsBmp();
-        mReturnBmp = mStaffInfo.getProcessedBmp();
+        mWorkspace = acquireWorkspace();
+        try
+        {
+        	if(usesSharedBuffer())
+        	{
+        		mReturnBmp = processInSharedBuffer(skewAngle, cache);
+        		Log.i(TAG, "metrics "+mMetrics.snapshot().toJson());
+        		return mReturnBmp;
+        	}
+        	
+        	mWorkspace.reserve(mImageWidth, mImageHeight);
+        	mMatToProcess = mWorkspace.getRgba();
+        	mPixels = mWorkspace.getPixels();
+        	Utils.bitmapToMat(mReturnBmp, mMatToProcess, true);	//keeps the image in RGBA format
+        	
+        	preProcessMat();
+        	mMatToProcess.get(0, 0, mPixels);
+        	
+        	//straight lines keep every path search narrow, so this runs before any analysis
+        	mMetrics.startStage("deskew");
+        	if(skewAngle != null)
+        		SkewEstimator.deskew(mPixels, mImageWidth, mImageHeight, skewAngle.doubleValue());
+        	else
+        		SkewEstimator.deskew(mPixels, mImageWidth, mImageHeight);
+        	mMetrics.endStage();
+        	
+        	mStaffInfo = new MusicStaffInfo(mPixels, mImageWidth, mImageHeight);
+        	mStaffInfo.setMetrics(mMetrics);
+        	mStaffInfo.setCostBuffer(mWorkspace.getCostBuffer());
+        	mStaffInfo.setRenderBuffer(mWorkspace.getRenderBuffer());
+        	mStaffInfo.processImage();
+        	mStaffInfo.removeStaffLines();
+        	mResult = AnalysisResult.copyOf(mStaffInfo);	//mPixels goes back to the workspace
+        	cache.put(mCacheKey, mResult);
+        	// removeStaffLines();
+        	
+        	// Utils.matToBitmap(mMatToProcess, mReturnBmp, true);
+        	// mReturnBmp = mStaffInfo.getStablePathsAsBmp();
+        	mReturnBmp = null;
+        	if(mOutputFormat == null)
+        	{
+        		mMetrics.startStage("getProcessedBmp");
+        		mReturnBmp = mStaffInfo.getProcessedBmp();
+        		mMetrics.endStage();
+        	}
+        	
+        	mWorkspace.setCostBuffer(mStaffInfo.getCostBuffer());
+        	mWorkspace.setRenderBuffer(mStaffInfo.getRenderBuffer());
+        }
+        finally
+        {
+        	mMatToProcess = null;
+        	mPixels = null;
+        	returnWorkspace(mWorkspace);
+        	mWorkspace = null;
+        }
+        Log.i(TAG, "metrics "+mMetrics.snapshot().toJson());
         return mReturnBmp; 
     }
 
@@ -73,64 +215,325 @@ public class ProcessTask extends AsyncTask<Double, Integer, Bitmap>
 	@Override
 	protected void onPostExecute(Bitmap result) {
 		super.onPostExecute(result);
-		
 		Log.i(TAG, "onPostExecute");
-		FileOutputStream out = null;
-		String path = Environment.getExternalStorageDirectory().toString();
+	}
+
+	//hands the output files to the output queue, which compresses and writes them on its own thread
+	private void queueOutput(Bitmap result)
+	{
+		final String path = Environment.getExternalStorageDirectory().toString();
+		final AnalysisResult analysis = mResult;
+		final PipelineMetrics.Snapshot metrics = mDumpMetrics ? mMetrics.snapshot() : null;
+		OutputQueue queue = getOutputQueue();
 		try 
 		{
-			File file = new File(path + "/out.PNG");
-			out = new FileOutputStream(file);
-			Log.i(TAG, "Saving image to "+path);
-			result.compress(Bitmap.CompressFormat.PNG, 90, out);
-		} 
-		catch (Exception e) 
-		{
-		    e.printStackTrace();
+			if(mOutputFormat != null)
+			{
+				final BilevelWriter.Format format = mOutputFormat;
+				queue.submit("out." + format.getExtension(), new OutputQueue.Job()
+				{
+					@Override
+					public void write() throws IOException
+					{
+						Log.i(TAG, "Saving image to "+path);
+						BilevelWriter.write(analysis.getCleanedPixels(), analysis.getWidth(), analysis.getHeight(), format,
+								new File(path + "/out." + format.getExtension()));
+					}
+				});
+			}
+			else if(result != null)
+			{
+				final Bitmap bmp = result;
+				queue.submit("out.PNG", new OutputQueue.Job()
+				{
+					@Override
+					public void write() throws IOException
+					{
+						Log.i(TAG, "Saving image to "+path);
+						OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(path + "/out.PNG")));
+						try
+						{
+							bmp.compress(Bitmap.CompressFormat.PNG, 90, out);
+						}
+						finally
+						{
+							out.close();
+						}
+					}
+				});
+			}
+			
+			//the staff geometry as well, so consumers don't have to recover it from the image
+			queue.submit("out.msr", new OutputQueue.Job()
+			{
+				@Override
+				public void write() throws IOException
+				{
+					StaffResultWriter.write(analysis, new File(path + "/out.msr"));
+				}
+			});
+			if(metrics != null)
+			{
+				queue.submit("out_metrics.json", new OutputQueue.Job()
+				{
+					@Override
+					public void write() throws IOException
+					{
+						metrics.writeJson(new File(path + "/out_metrics.json"));
+					}
+				});
+			}
 		} 
-		finally 
+		catch (InterruptedException e) 
 		{
-			try
-			{
-				out.close();
-		    } 
-			catch(Throwable ignore) {}
+			Log.i(TAG, "interrupted while queueing the output");
+			Thread.currentThread().interrupt();
 		}
 	}
 
+	//when set, the stage timings and search counters are also written to out_metrics.json next to out.PNG
+	public void setDumpMetrics(boolean dump)
+	{
+		mDumpMetrics = dump;
+	}
+	
+	//null writes the cleaned page as out.PNG. a bilevel format writes it as out.pbm, out.pgm or out.rle straight from
+	// the cleaned pixels, and no bitmap is rendered for it at all
+	public void setOutputFormat(BilevelWriter.Format format)
+	{
+		mOutputFormat = format;
+	}
+	
+	public PipelineMetrics getMetrics()
+	{
+		return mMetrics;
+	}
+	
+	//when set, the picture goes through processInSharedBuffer instead of the OpenCV Mats
+	public void setSharedBuffer(boolean shared)
+	{
+		mUseSharedBuffer = shared;
+	}
+	
 	public void setImageToProcess(Bitmap bmpToProcess)
     {
     	mReturnBmp = bmpToProcess;
     	mImageWidth = bmpToProcess.getWidth();
     	mImageHeight = bmpToProcess.getHeight();
-    	mMatToProcess = new Mat(mImageHeight, mImageWidth, CvType.CV_8UC4);
-        Utils.bitmapToMat(mReturnBmp, mMatToProcess, true);	//is created as 'CV_8UC4' type, it keeps the image in RGBA format.
-    	mPixels = new byte[(int) (mMatToProcess.total() * mMatToProcess.channels())];
+    	mSourcePath = null;
+    }
+    
+    //processes only the given region of the image file at path. it is decoded in the background, subsampled to about
+    // MAX_ANALYSIS_PIXELS, and the rest of the file is never decoded
+    public void setImageToProcess(String path, CropRegion region)
+    {
+    	mSourcePath = path;
+    	mSourceRegion = region;
+    	mSampleSize = region.getSampleSize(MAX_ANALYSIS_PIXELS);
+    	mReturnBmp = null;
+    	mImageWidth = region.getWidth()/mSampleSize;
+    	mImageHeight = region.getHeight()/mSampleSize;
+    }
+    
+    private static Bitmap decodeRegion(String path, CropRegion region, int sampleSize)
+    {
+    	BitmapFactory.Options options = new BitmapFactory.Options();
+    	options.inSampleSize = sampleSize;
+    	options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+    	
+    	if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1)
+    		return RegionDecoder.decode(path, region, options);
+    	
+    	//no region decoder before 2.3.3, so the whole file is decoded at the sample size and the region cut out of it
+    	Bitmap whole = BitmapFactory.decodeFile(path, options);
+    	if(whole == null)
+    		return null;
+    	int x = Math.min(region.getLeft()/sampleSize, whole.getWidth()-1);
+    	int y = Math.min(region.getTop()/sampleSize, whole.getHeight()-1);
+    	int w = Math.max(1, Math.min(region.getWidth()/sampleSize, whole.getWidth()-x));
+    	int h = Math.max(1, Math.min(region.getHeight()/sampleSize, whole.getHeight()-y));
+    	Bitmap cropped = Bitmap.createBitmap(whole, x, y, w, h);
+    	if(cropped != whole)
+    		whole.recycle();
+    	return cropped;
+    }
+    
+    //kept in its own class so the BitmapRegionDecoder reference is only resolved on versions that have it
+    private static class RegionDecoder
+    {
+    	static Bitmap decode(String path, CropRegion region, BitmapFactory.Options options)
+    	{
+    		BitmapRegionDecoder decoder = null;
+    		try
+    		{
+    			decoder = BitmapRegionDecoder.newInstance(path, false);
+    			Rect rect = new Rect(region.getLeft(), region.getTop(), region.getRight(), region.getBottom());
+    			return decoder.decodeRegion(rect, options);
+    		}
+    		catch(IOException e)
+    		{
+    			Log.i(TAG, "region decode failed: "+e.getMessage());
+    			return null;
+    		}
+    		finally
+    		{
+    			if(decoder != null)
+    				decoder.recycle();
+    		}
+    	}
+    }
+    
+    //the shared buffer path needs 4 byte RGBA pixels, region decodes always are
+    private boolean usesSharedBuffer()
+    {
+    	return mUseSharedBuffer && (mSourcePath != null || mReturnBmp.getConfig() == Bitmap.Config.ARGB_8888);
+    }
+    
+    //the picture is copied once into the workspace's direct buffer, binarized in place there (Binarizer.binarizeRgba),
+    // analyzed and cleaned in place by the MusicStaffInfo and rendered back over the same buffer for the bitmap.
+    // no Mats, no byte[] copy of the image and no argb int buffer, only the copy of the cleaned image the cache keeps
+    private Bitmap processInSharedBuffer(Double skewAngle, ResultCache cache)
+    {
+    	final int w = mImageWidth;
+    	final int h = mImageHeight;
+    	ByteBuffer buffer = mWorkspace.reserveShared(w, h);
+    	mMetrics.startStage("copyPixelsToBuffer");
+    	mReturnBmp.copyPixelsToBuffer(buffer);
+    	if(mSourcePath != null)
+    		mReturnBmp.recycle();	//decoded by this task, so nothing else holds it
+    	mReturnBmp = null;
+    	
+    	mMetrics.startStage("binarize");
+    	ByteBuffer image = Binarizer.binarizeRgba(buffer, w, h);
+    	
+    	//the rest of the buffer is free once the image is binarized, so the rotation goes through the next w*h bytes
+    	mMetrics.startStage("deskew");
+    	ByteBuffer scratch = buffer.duplicate();
+    	scratch.clear();
+    	scratch.position(w*h);
+    	scratch = scratch.slice();
+    	double angle = (skewAngle != null) ? skewAngle.doubleValue() : SkewEstimator.estimateAngle(image, w, h);
+    	SkewEstimator.deskew(image, w, h, angle, scratch);
+    	mMetrics.endStage();
+    	
+    	mStaffInfo = new MusicStaffInfo(image, w, h);
+    	mStaffInfo.setMetrics(mMetrics);
+    	mStaffInfo.setCostBuffer(mWorkspace.getCostBuffer());
+    	mStaffInfo.processImage();
+    	mStaffInfo.removeStaffLines();
+    	mResult = AnalysisResult.copyOf(mStaffInfo);	//the buffer is rendered over next
+    	cache.put(mCacheKey, mResult);
+    	
+    	Bitmap bmp = null;
+    	if(mOutputFormat == null)
+    	{
+    		mMetrics.startStage("getProcessedBmp");
+    		bmp = mStaffInfo.getProcessedBmpInPlace(buffer);
+    		mMetrics.endStage();
+    	}
+    	
+    	mWorkspace.setCostBuffer(mStaffInfo.getCostBuffer());
+    	return bmp;
+    }
+    
+    //frees the buffers kept between tasks, e.g. when the system is low on memory. a task that is running
+    // frees them itself when it finishes
+    public static synchronized void releaseWorkspace()
+    {
+    	if(sWorkspace != null && !sWorkspaceInUse)
+    		sWorkspace.release();
+    	sWorkspace = null;
+    	sWorkspaceInUse = false;
+    }
+    
+    //the shared workspace, or a private one if another task is still using it
+    private static synchronized ProcessingWorkspace acquireWorkspace()
+    {
+    	if(sWorkspaceInUse)
+    		return new ProcessingWorkspace();
+    	if(sWorkspace == null)
+    		sWorkspace = new ProcessingWorkspace();
+    	sWorkspaceInUse = true;
+    	return sWorkspace;
+    }
+    
+    private static synchronized void returnWorkspace(ProcessingWorkspace workspace)
+    {
+    	if(workspace == sWorkspace)
+    		sWorkspaceInUse = false;
+    	else
+    		workspace.release();	//a private one, or the shared one was dropped by releaseWorkspace while in use
+    }
+    
+    private static synchronized OutputQueue getOutputQueue()
+    {
+    	if(sOutputQueue == null)
+    		sOutputQueue = new OutputQueue("ProcessTaskOutput", OUTPUT_QUEUE_LENGTH);
+    	return sOutputQueue;
+    }
+    
+    private static synchronized ResultCache getResultCache()
+    {
+    	if(sResultCache == null)
+    	{
+    		File dir = new File(Environment.getExternalStorageDirectory(), "MusicScanner/cache");
+    		sResultCache = new ResultCache(CACHE_MEMORY_BYTES, dir, CACHE_DISK_BYTES);
+    	}
+    	return sResultCache;
+    }
+    
+    //the file is identified by its path, size and modification time rather than its content, which would mean decoding it
+    private String cacheKeyFor(String path, CropRegion region, int sampleSize)
+    {
+    	File file = new File(path);
+    	return new ContentKey().addString(file.getAbsolutePath()).addString(file.length() + ";" + file.lastModified())
+    			.addString(region.toString()).addInt(sampleSize)
+    			.addString(pipelineKey()).finish();
+    }
+    
+    //hashes the bitmap a row at a time so no second full size copy is made
+    private String cacheKeyFor(Bitmap bmp)
+    {
+    	ContentKey key = new ContentKey().addInt(mImageWidth).addInt(mImageHeight)
+    			.addString(pipelineKey());
+    	int[] row = new int[mImageWidth];
+    	for(int y=0; y<mImageHeight; ++y)
+    	{
+    		bmp.getPixels(row, 0, mImageWidth, 0, y, mImageWidth, 1);
+    		key.addPixels(row, 0, mImageWidth);
+    	}
+    	return key.finish();
     }
     
-    private void rotateImage(double angleRads)
+    //results of the two binarizers are kept apart in the cache
+    private String pipelineKey()
     {
-    	Log.i(TAG, "RotateImage");
-        Point center = new Point(mImageWidth/2, mImageHeight/2);
-        Mat rotationMat = Imgproc.getRotationMatrix2D(center, -1*Math.toDegrees(angleRads), 1);
-        Imgproc.warpAffine(mMatToProcess, mMatToProcess, rotationMat, mMatToProcess.size());
+    	return (usesSharedBuffer() ? "binarizer=java;" : "binarizer=opencv;") + "deskew;" + new SearchOptions().getKey();
     }
     
     private void preProcessMat()
     {
     	Log.i(TAG, "preProcess");
-    	Imgproc.cvtColor(mMatToProcess, mMatToProcess, Imgproc.COLOR_RGBA2GRAY);
+    	//all Mats come from the workspace and are written in place, so nothing is allocated per image
+    	mMetrics.startStage("cvtColor");
+    	Mat gray = mWorkspace.getGray();
+    	Imgproc.cvtColor(mMatToProcess, gray, Imgproc.COLOR_RGBA2GRAY);
+    	mMatToProcess = gray;
 
-    	Mat sobel = new Mat();
+    	mMetrics.startStage("sobel");
+    	Mat sobel = mWorkspace.getSobel();
     	Imgproc.Sobel(mMatToProcess, sobel, -1, 0, 1);
    		
+    	mMetrics.startStage("invertAndCombine");
    		Core.bitwise_not(mMatToProcess, mMatToProcess);
    		Core.bitwise_or(mMatToProcess, sobel, mMatToProcess);
    		
-    	Mat kernel = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(5, 3));
-   		Imgproc.morphologyEx(mMatToProcess, mMatToProcess, Imgproc.MORPH_DILATE, kernel);
+    	mMetrics.startStage("dilate");
+   		Imgproc.morphologyEx(mMatToProcess, mMatToProcess, Imgproc.MORPH_DILATE, mWorkspace.getKernel());
    		
+    	mMetrics.startStage("otsuThreshold");
     	Imgproc.threshold(mMatToProcess, mMatToProcess, -1, 255, Imgproc.THRESH_OTSU);
+    	mMetrics.endStage();
     }
 
     
@@ -0,0 +1,194 @@
+package com.metze.scanner;
+
+import java.nio.ByteBuffer;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+//the native and heap buffers one ProcessTask run needs, kept between runs so a scanning session doesn't allocate
+// (and free) a few image sized buffers per picture. buffers only grow: an image that fits the current capacity runs
+// in views of the larger Mats and the front part of the arrays.
+// the shared buffer path (reserveShared) needs none of the Mats: the picture, the binary image and the rendered
+// output all take turns in one direct buffer.
+// one task at a time, ProcessTask hands it out and takes it back
+public class ProcessingWorkspace
+{
+	private int mCapacityWidth;
+	private int mCapacityHeight;
+
+	private Mat mRgba;
+	private Mat mGray;
+	private Mat mSobel;
+	private final Mat mKernel;
+	private byte[] mPixels;			//the binary image the analyzer works on, w*h, not w*h*channels
+	private float[] mCostBuffer;	//StaffAnalyzer's shortest path costs, allocated by the first analyzer that needs it
+	private int[] mRenderBuffer;	//MusicStaffInfo's argb output
+	private ByteBuffer mSharedBuffer;	//direct, 4 bytes per pixel
+
+	//views of the Mats for the current image, released by the next reserve or by release
+	private Mat mRgbaView;
+	private Mat mGrayView;
+	private Mat mSobelView;
+
+	public ProcessingWorkspace()
+	{
+		mCapacityWidth = 0;
+		mCapacityHeight = 0;
+		mRgba = null;
+		mGray = null;
+		mSobel = null;
+		mKernel = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(5, 3));
+		mPixels = null;
+		mCostBuffer = null;
+		mRenderBuffer = null;
+		mSharedBuffer = null;
+		mRgbaView = null;
+		mGrayView = null;
+		mSobelView = null;
+	}
+
+	//sets the workspace up for a w x h image, reallocating only if it doesn't fit what is already there
+	public void reserve(int w, int h)
+	{
+		releaseViews();
+		if(w > mCapacityWidth || h > mCapacityHeight)
+		{
+			releaseMats();
+			mCapacityWidth = Math.max(w, mCapacityWidth);
+			mCapacityHeight = Math.max(h, mCapacityHeight);
+			mRgba = new Mat(mCapacityHeight, mCapacityWidth, CvType.CV_8UC4);
+			mGray = new Mat(mCapacityHeight, mCapacityWidth, CvType.CV_8UC1);
+			mSobel = new Mat(mCapacityHeight, mCapacityWidth, CvType.CV_8UC1);
+		}
+		if(mPixels == null || mPixels.length < w*h)
+			mPixels = new byte[mCapacityWidth*mCapacityHeight];
+
+		mRgbaView = view(mRgba, w, h);
+		mGrayView = view(mGray, w, h);
+		mSobelView = view(mSobel, w, h);
+	}
+
+	//a direct buffer of at least 4*w*h bytes, cleared, for Bitmap.copyPixelsToBuffer and the in place binarizer
+	public ByteBuffer reserveShared(int w, int h)
+	{
+		if(mSharedBuffer == null || mSharedBuffer.capacity() < 4*w*h)
+		{
+			mSharedBuffer = null;	//let the old one go before the new one is allocated
+			mSharedBuffer = ByteBuffer.allocateDirect(4*w*h);
+		}
+		mSharedBuffer.clear();
+		return mSharedBuffer;
+	}
+
+	public Mat getRgba()
+	{
+		return mRgbaView;
+	}
+
+	public Mat getGray()
+	{
+		return mGrayView;
+	}
+
+	public Mat getSobel()
+	{
+		return mSobelView;
+	}
+
+	//the structuring element for the dilate step, the same for every image
+	public Mat getKernel()
+	{
+		return mKernel;
+	}
+
+	public byte[] getPixels()
+	{
+		return mPixels;
+	}
+
+	public float[] getCostBuffer()
+	{
+		return mCostBuffer;
+	}
+
+	public void setCostBuffer(float[] costBuffer)
+	{
+		mCostBuffer = costBuffer;
+	}
+
+	public int[] getRenderBuffer()
+	{
+		return mRenderBuffer;
+	}
+
+	public void setRenderBuffer(int[] renderBuffer)
+	{
+		mRenderBuffer = renderBuffer;
+	}
+
+	//bytes held across runs, native and heap
+	public long getSizeInBytes()
+	{
+		long size = 6L*mCapacityWidth*mCapacityHeight;	//rgba, gray and sobel Mats
+		if(mPixels != null)
+			size += mPixels.length;
+		if(mCostBuffer != null)
+			size += 4L*mCostBuffer.length;
+		if(mRenderBuffer != null)
+			size += 4L*mRenderBuffer.length;
+		if(mSharedBuffer != null)
+			size += mSharedBuffer.capacity();
+		return size;
+	}
+
+	//frees everything, the workspace can still be used afterwards and reallocates on the next reserve
+	public void release()
+	{
+		releaseViews();
+		releaseMats();
+		mCapacityWidth = 0;
+		mCapacityHeight = 0;
+		mPixels = null;
+		mCostBuffer = null;
+		mRenderBuffer = null;
+		mSharedBuffer = null;
+	}
+
+	private static Mat view(Mat mat, int w, int h)
+	{
+		if(mat.cols() == w && mat.rows() == h)
+			return mat;
+		return mat.submat(0, h, 0, w);
+	}
+
+	private void releaseViews()
+	{
+		releaseView(mRgbaView, mRgba);
+		releaseView(mGrayView, mGray);
+		releaseView(mSobelView, mSobel);
+		mRgbaView = null;
+		mGrayView = null;
+		mSobelView = null;
+	}
+
+	private static void releaseView(Mat view, Mat mat)
+	{
+		if(view != null && view != mat)
+			view.release();
+	}
+
+	private void releaseMats()
+	{
+		if(mRgba != null)
+			mRgba.release();
+		if(mGray != null)
+			mGray.release();
+		if(mSobel != null)
+			mSobel.release();
+		mRgba = null;
+		mGray = null;
+		mSobel = null;
+	}
+}
@@ -0,0 +1,123 @@
+package com.metze.scanner.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+//everything a finished analysis produces: the staff measurements, the stable paths and the cleaned image.
+// it holds no reference to the analyzer, so it can be cached and handed between threads.
+// StaffResultWriter persists it, MappedStaffResult reads it back
+public class AnalysisResult
+{
+	private final int mWidth;
+	private final int mHeight;
+	private final int mStaffLineThickness;
+	private final int mStaffLineSpacing;
+	private final int mTotalStaffLines;
+	private final int mNumStaffs;
+	private final int mPathLeftBound;
+	private final int mPathRightBound;
+	private final List<int[]> mStablePaths;
+	private final byte[] mCleanedPixels;		//null if the image wasn't kept
+
+	public AnalysisResult(int w, int h, int thickness, int spacing, int totalLines, int numStaffs,
+			int pathLeftBound, int pathRightBound, List<int[]> stablePaths, byte[] cleanedPixels)
+	{
+		mWidth = w;
+		mHeight = h;
+		mStaffLineThickness = thickness;
+		mStaffLineSpacing = spacing;
+		mTotalStaffLines = totalLines;
+		mNumStaffs = numStaffs;
+		mPathLeftBound = pathLeftBound;
+		mPathRightBound = pathRightBound;
+		mStablePaths = Collections.unmodifiableList(new ArrayList<int[]>(stablePaths));
+		mCleanedPixels = cleanedPixels;
+	}
+
+	//snapshot of an analyzer after processImage (and usually removeStaffLines). the pixels are shared, not copied,
+	// unless the analyzer works on a direct buffer
+	public static AnalysisResult from(StaffAnalyzer staffInfo, boolean keepImage)
+	{
+		return new AnalysisResult(staffInfo.getWidth(), staffInfo.getHeight(),
+				staffInfo.getStaffLineSize(), staffInfo.getStaffSpaceSize(),
+				staffInfo.getTotalStaffLines(), staffInfo.getNumStaffs(),
+				staffInfo.getPathLeftBound(), staffInfo.getPathRightBound(),
+				staffInfo.getStablePaths(), keepImage ? sharedPixels(staffInfo) : null);
+	}
+
+	//like from with the image kept, but with a copy of the pixels, for analyzers whose buffers get reused afterwards
+	public static AnalysisResult copyOf(StaffAnalyzer staffInfo)
+	{
+		return new AnalysisResult(staffInfo.getWidth(), staffInfo.getHeight(),
+				staffInfo.getStaffLineSize(), staffInfo.getStaffSpaceSize(),
+				staffInfo.getTotalStaffLines(), staffInfo.getNumStaffs(),
+				staffInfo.getPathLeftBound(), staffInfo.getPathRightBound(),
+				staffInfo.getStablePaths(), staffInfo.copyPixels(null));
+	}
+
+	private static byte[] sharedPixels(StaffAnalyzer staffInfo)
+	{
+		byte[] pixels = staffInfo.getPixels();
+		return (pixels != null) ? pixels : staffInfo.copyPixels(null);
+	}
+
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+	public int getStaffLineSize()
+	{
+		return mStaffLineThickness;
+	}
+
+	public int getStaffSpaceSize()
+	{
+		return mStaffLineSpacing;
+	}
+
+	public int getTotalStaffLines()
+	{
+		return mTotalStaffLines;
+	}
+
+	public int getNumStaffs()
+	{
+		return mNumStaffs;
+	}
+
+	public int getPathLeftBound()
+	{
+		return mPathLeftBound;
+	}
+
+	public int getPathRightBound()
+	{
+		return mPathRightBound;
+	}
+
+	public List<int[]> getStablePaths()
+	{
+		return mStablePaths;
+	}
+
+	public byte[] getCleanedPixels()
+	{
+		return mCleanedPixels;
+	}
+
+	//rough heap footprint, used to bound the in memory cache
+	public long getSizeInBytes()
+	{
+		long size = 64 + 16L*mStablePaths.size() + 4L*mWidth*mStablePaths.size();
+		if(mCleanedPixels != null)
+			size += mCleanedPixels.length;
+		return size;
+	}
+}
@@ -0,0 +1,134 @@
+package com.metze.scanner.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//StaffAnalyzer.shortestPath with the path kept within bandRadius rows of the row it starts on.
+// the unbanded cone grows one row per column until it covers the whole image height, while staff lines only drift
+// a few rows across a page, so most of that work is spent on rows no staff line path goes through.
+// costs are kept for two columns of the band only, so a search is O(w*band) time and O(band) memory.
+// paths that would have wandered further than the band are cut off at its edge, so results can differ from the full search
+public class BandedPathSearch
+{
+	private static final float UNREACHED = Float.MAX_VALUE-5.f;
+
+	private final ByteBuffer mPixelBuffer;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mBandRadius;
+
+	private float[] mPrevCost;		//index 0 is row yStart-bandRadius
+	private float[] mCurCost;
+
+	public BandedPathSearch(ByteBuffer pixels, int w, int h, int bandRadius)
+	{
+		mPixelBuffer = pixels;
+		mWidth = w;
+		mHeight = h;
+		mBandRadius = bandRadius;
+
+		mPrevCost = new float[2*bandRadius+1];
+		mCurCost = new float[2*bandRadius+1];
+	}
+
+	public int getBandRadius()
+	{
+		return mBandRadius;
+	}
+
+	//this method assumes white is foreground/staff lines with an int val of -1 and black an int val of 0.
+	// mergeInto works as in RollingPathSearch
+	public int[] shortestPath(int x, int xEnd, int y, boolean leftToRight, int[] mergeInto)
+	{
+		int xStart = x;
+		int yStart = y;
+		final float k = 5.f;
+
+		int dir = 1;
+		if(!leftToRight)
+			dir = -1;
+
+		//rows of the band that are inside the image
+		final int bandTop = yStart - mBandRadius;
+		final int yLimitMin = Math.max(0, bandTop);
+		final int yLimitMax = Math.min(mHeight-1, yStart + mBandRadius);
+
+		Arrays.fill(mPrevCost, UNREACHED);
+		Arrays.fill(mCurCost, UNREACHED);
+		mPrevCost[y-bandTop] = 0.0f;
+
+		int path[] = new int[mWidth];
+		path[x] = y;
+		int merged = 0;
+		while(x != xEnd)
+		{
+			x+=dir;
+
+			int xDiff = Math.abs(x - xStart);
+			int yIndexMin = Math.max(yLimitMin, yStart-xDiff);
+			int yIndexMax = Math.min(yLimitMax, yStart+xDiff);
+
+			for(int yi=yIndexMin; yi<=yIndexMax; ++yi)
+			{
+				int i = yi-bandTop;
+				float pixelWeight = k*(mPixelBuffer.get(yi*mWidth+x) + 1.f);	//bigger k value = less likely to choose background pixel
+
+				float cost = UNREACHED;
+				float costFromPrev = 1.0f + mPrevCost[i] + pixelWeight;
+				if(costFromPrev < cost)
+					cost = costFromPrev;
+
+				if(yi > yLimitMin)
+				{
+					float costFromPrevUp = 1.414f + mPrevCost[i-1] + pixelWeight;
+					if(costFromPrevUp < cost)
+						cost = costFromPrevUp;
+				}
+				if(yi < yLimitMax)
+				{
+					float costFromPrevDown = 1.414f + mPrevCost[i+1] + pixelWeight;
+					if(costFromPrevDown < cost)
+						cost = costFromPrevDown;
+				}
+
+				mCurCost[i] = cost;
+			}
+
+			//column x is done, so the walk can step onto it
+			int i = y-bandTop;
+			float bestCost = mCurCost[i];
+			int bestY = y;
+			if(y > yLimitMin && mCurCost[i-1] < bestCost)
+			{
+				bestCost = mCurCost[i-1];
+				bestY = y-1;
+			}
+			if(y < yLimitMax && mCurCost[i+1] < bestCost)
+			{
+				bestY = y+1;
+			}
+			y = bestY;
+
+			float[] tmp = mPrevCost;
+			mPrevCost = mCurCost;
+			mCurCost = tmp;
+
+			if(x == xEnd)
+				break;
+			path[x] = y;
+
+			if(mergeInto != null)
+			{
+				merged = (mergeInto[x] == y) ? merged+1 : 0;
+				if(merged >= StaffAnalyzer.MERGE_COLUMNS)
+				{
+					for(x+=dir; x!=xEnd; x+=dir)
+						path[x] = mergeInto[x];
+					break;
+				}
+			}
+		}
+
+		return path;
+	}
+}
@@ -0,0 +1,167 @@
+package com.metze.scanner.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//finds the stable paths of LANES seed rows per sweep over the columns instead of one shortestPath search per row.
+// it is still a search per seed, O(h*h*w/LANES) per page: each seed gets its own cost column, LANES of them side by
+// side per row, and its own walk, with the same sums and comparisons as RollingPathSearch, so the paths and the
+// stable set are exactly the per row search's. a single DP over all rows can't give that, the greedy walk of each
+// seed depends on the costs from that seed alone. what batching saves is reading a column's pixels once for all the
+// lanes, which are a plain loop the JIT can vectorize. a sweep fills the rows all its seeds' cones cover, a few more
+// per column than the cones alone.
+// scratch memory is 2*(h+2)*LANES floats plus LANES paths
+public class BatchedPathSearch
+{
+	static final int LANES = 32;
+	private static final float UNREACHED = Float.MAX_VALUE-5.f;
+
+	private final ByteBuffer mPixelBuffer;
+	private final int mWidth;
+	private final int mHeight;
+
+	//row y of lane b is at (y+1)*LANES+b, rows -1 and h stay UNREACHED so the lanes need no edge tests
+	private float[] mPrevCost;
+	private float[] mCurCost;
+
+	public BatchedPathSearch(ByteBuffer pixels, int w, int h)
+	{
+		mPixelBuffer = pixels;
+		mWidth = w;
+		mHeight = h;
+
+		mPrevCost = new float[(h+2)*LANES];
+		mCurCost = new float[(h+2)*LANES];
+	}
+
+	//returns the stable paths between xStart and xEnd of the given seed rows, in seed order, as
+	// StaffAnalyzer's per row search without convergence stop finds them
+	public List<int[]> findStablePaths(int xStart, int xEnd, int[] seeds, PipelineMetrics metrics)
+	{
+		int[] reverseStartY = new int[mHeight];		//y at xStart+1 of the reverse search from each right end row
+		int[] reverseEndY = new int[mHeight];		//and at xEnd-1
+		Arrays.fill(reverseStartY, -1);
+
+		List<int[]> stablePaths = new ArrayList<int[]>();
+		int searches = 0;
+		int reuses = 0;
+		int[] ends = new int[LANES];
+		for(int first=0; first<seeds.length; first+=LANES)
+		{
+			int count = Math.min(LANES, seeds.length-first);
+			int[][] forward = sweep(xStart, xEnd, seeds, first, count);
+			searches += count;
+
+			//right end rows no reverse search has run from yet, each once
+			int endCount = 0;
+			for(int i=0; i<count; ++i)
+			{
+				int rightEndY = forward[i][xEnd-1];
+				if(reverseStartY[rightEndY] < 0)
+				{
+					reverseStartY[rightEndY] = Integer.MAX_VALUE;	//queued
+					ends[endCount++] = rightEndY;
+				}
+			}
+			reuses += count - endCount;
+			searches += endCount;
+			if(endCount > 0)
+			{
+				int[][] reverse = sweep(xEnd, xStart, ends, 0, endCount);
+				for(int i=0; i<endCount; ++i)
+				{
+					reverseStartY[ends[i]] = reverse[i][xStart+1];
+					reverseEndY[ends[i]] = reverse[i][xEnd-1];
+				}
+			}
+
+			for(int i=0; i<count; ++i)
+			{
+				int[] path = forward[i];
+				int rightEndY = path[xEnd-1];
+				if(reverseStartY[rightEndY] == path[xStart+1] && reverseEndY[rightEndY] == path[xEnd-1])
+					stablePaths.add(path);
+			}
+		}
+
+		metrics.addCount(PipelineMetrics.SHORTEST_PATH_CALLS, searches);
+		metrics.addCount(PipelineMetrics.REVERSE_SEARCH_REUSES, reuses);
+		return stablePaths;
+	}
+
+	//RollingPathSearch.shortestPath from rows[first] to rows[first+count-1] (count <= LANES) at once
+	private int[][] sweep(int x, int xEnd, int[] rows, int first, int count)
+	{
+		final float k = 5.f;
+		final int dir = (xEnd > x) ? 1 : -1;
+		final int xStart = x;
+
+		Arrays.fill(mPrevCost, UNREACHED);
+		Arrays.fill(mCurCost, UNREACHED);
+		int[][] paths = new int[count][];
+		int[] walkY = new int[count];
+		int minRow = mHeight;
+		int maxRow = 0;
+		for(int b=0; b<count; ++b)
+		{
+			walkY[b] = rows[first+b];
+			minRow = Math.min(minRow, walkY[b]);
+			maxRow = Math.max(maxRow, walkY[b]);
+			mPrevCost[(walkY[b]+1)*LANES + b] = 0.0f;
+			paths[b] = new int[mWidth];
+			paths[b][x] = walkY[b];
+		}
+
+		while(x != xEnd)
+		{
+			x += dir;
+
+			//the rows any lane's cone reaches, lanes outside their own cone stay UNREACHED as in the per row search
+			int xDiff = Math.abs(x - xStart);
+			int yMin = Math.max(0, minRow-xDiff);
+			int yMax = Math.min(mHeight-1, maxRow+xDiff);
+			float[] prev = mPrevCost;
+			float[] cur = mCurCost;
+			for(int y=yMin; y<=yMax; ++y)
+			{
+				float pixelWeight = k*(mPixelBuffer.get(y*mWidth+x) + 1.f);	//bigger k value = less likely to choose background pixel
+				int row = (y+1)*LANES;
+				//Math.min picks like the strict < of the per row search, the costs are never NaN or -0
+				for(int b=0; b<LANES; ++b)
+				{
+					float cost = 1.0f + prev[row+b] + pixelWeight;
+					cost = Math.min(cost, 1.414f + prev[row-LANES+b] + pixelWeight);
+					cost = Math.min(cost, 1.414f + prev[row+LANES+b] + pixelWeight);
+					cur[row+b] = cost;
+				}
+			}
+
+			//column x is done, so the walks can step onto it
+			for(int b=0; b<count; ++b)
+			{
+				int y = walkY[b];
+				float bestCost = cur[(y+1)*LANES + b];
+				int bestY = y;
+				if(y > 0 && cur[y*LANES + b] < bestCost)
+				{
+					bestCost = cur[y*LANES + b];
+					bestY = y-1;
+				}
+				if(y < mHeight-1 && cur[(y+2)*LANES + b] < bestCost)
+				{
+					bestY = y+1;
+				}
+				walkY[b] = bestY;
+				if(x != xEnd)
+					paths[b][x] = bestY;
+			}
+
+			mPrevCost = cur;
+			mCurCost = prev;
+		}
+
+		return paths;
+	}
+}
@@ -0,0 +1,249 @@
+package com.metze.scanner.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+//writes StaffAnalyzer style binary images (any non zero pixel is foreground) straight from the byte buffer, a row at a
+// time, with no ARGB image or image encoder in between. foreground is written as ink, so it shows black:
+//   PBM  raw P4, one bit per pixel, 1 is black
+//   PGM  raw P5, one byte per pixel, 0 on foreground and 255 on background
+//   RLE  big endian header: magic "MSRL", u16 version, u16 flags (0), int width, int height. then for every row,
+//        varints of the run lengths alternating background and foreground, starting with background (0 if the row
+//        starts on foreground), which add up to the width. a cleaned page is mostly long background runs, so this is
+//        a fraction of the PBM size. readRle reads it back
+// rows can be written as they become final, e.g. strip by strip from StripAnalyzer
+public class BilevelWriter
+{
+	static final int RLE_MAGIC = 0x4d53524c;	//"MSRL"
+	static final int RLE_VERSION = 1;
+
+	public enum Format
+	{
+		PBM, PGM, RLE;
+
+		public String getExtension()
+		{
+			return name().toLowerCase(Locale.US);
+		}
+
+		//"pbm", "pgm" or "rle", in any case
+		public static Format fromName(String name)
+		{
+			return valueOf(name.toUpperCase(Locale.US));
+		}
+	}
+
+	private final OutputStream mOut;
+	private final Format mFormat;
+	private final int mWidth;
+	private final int mHeight;
+	private final byte[] mRow;		//one encoded row
+	private int mRowsWritten;
+
+	//writes the header right away. the stream is closed by close
+	public BilevelWriter(OutputStream out, Format format, int w, int h) throws IOException
+	{
+		mOut = out;
+		mFormat = format;
+		mWidth = w;
+		mHeight = h;
+		mRowsWritten = 0;
+
+		switch(format)
+		{
+		case PBM:
+			mRow = new byte[(w + 7)/8];
+			mOut.write(("P4\n" + w + " " + h + "\n").getBytes("US-ASCII"));
+			break;
+		case PGM:
+			mRow = new byte[w];
+			mOut.write(("P5\n" + w + " " + h + "\n255\n").getBytes("US-ASCII"));
+			break;
+		default:
+			mRow = new byte[5*(w+1)];	//at most w+1 runs of at most 5 varint bytes each
+			DataOutputStream header = new DataOutputStream(mOut);
+			header.writeInt(RLE_MAGIC);
+			header.writeShort(RLE_VERSION);
+			header.writeShort(0);
+			header.writeInt(w);
+			header.writeInt(h);
+			break;
+		}
+	}
+
+	public BilevelWriter(File file, Format format, int w, int h) throws IOException
+	{
+		this(new BufferedOutputStream(new FileOutputStream(file), 1 << 16), format, w, h);
+	}
+
+	//writes a whole image to file
+	public static void write(ByteBuffer pixels, int w, int h, Format format, File file) throws IOException
+	{
+		BilevelWriter writer = new BilevelWriter(file, format, w, h);
+		try
+		{
+			writer.writeRows(pixels, 0, h);
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	public static void write(byte[] pixels, int w, int h, Format format, File file) throws IOException
+	{
+		write(ByteBuffer.wrap(pixels), w, h, format, file);
+	}
+
+	public void writeRows(byte[] pixels, int offset, int rows) throws IOException
+	{
+		writeRows(ByteBuffer.wrap(pixels), offset, rows);
+	}
+
+	//the next rows of the image, the first one starting at index offset of pixels
+	public void writeRows(ByteBuffer pixels, int offset, int rows) throws IOException
+	{
+		if(mRowsWritten + rows > mHeight)
+			throw new IOException("more than " + mHeight + " rows written");
+
+		for(int r=0; r<rows; ++r)
+		{
+			int rowStart = offset + r*mWidth;
+			switch(mFormat)
+			{
+			case PBM:
+				mOut.write(mRow, 0, encodePbmRow(pixels, rowStart));
+				break;
+			case PGM:
+				mOut.write(mRow, 0, encodePgmRow(pixels, rowStart));
+				break;
+			default:
+				mOut.write(mRow, 0, encodeRleRow(pixels, rowStart));
+				break;
+			}
+		}
+		mRowsWritten += rows;
+	}
+
+	public int getRowsWritten()
+	{
+		return mRowsWritten;
+	}
+
+	public void close() throws IOException
+	{
+		mOut.close();
+	}
+
+	private int encodePbmRow(ByteBuffer pixels, int rowStart)
+	{
+		for(int i=0; i<mRow.length; ++i)
+			mRow[i] = 0;
+		for(int x=0; x<mWidth; ++x)
+		{
+			if(pixels.get(rowStart+x) != 0)
+				mRow[x >> 3] |= 0x80 >> (x & 7);
+		}
+		return mRow.length;
+	}
+
+	private int encodePgmRow(ByteBuffer pixels, int rowStart)
+	{
+		for(int x=0; x<mWidth; ++x)
+			mRow[x] = (byte)((pixels.get(rowStart+x) != 0) ? 0 : 255);
+		return mWidth;
+	}
+
+	private int encodeRleRow(ByteBuffer pixels, int rowStart)
+	{
+		int length = 0;
+		boolean foreground = false;
+		int run = 0;
+		for(int x=0; x<mWidth; ++x)
+		{
+			if((pixels.get(rowStart+x) != 0) != foreground)
+			{
+				length = putVarint(mRow, length, run);
+				foreground = !foreground;
+				run = 0;
+			}
+			++run;
+		}
+		return putVarint(mRow, length, run);
+	}
+
+	private static int putVarint(byte[] out, int pos, int v)
+	{
+		while((v & ~0x7f) != 0)
+		{
+			out[pos++] = (byte)((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out[pos++] = (byte)v;
+		return pos;
+	}
+
+	//reads an RLE image back into a StaffAnalyzer style buffer, -1 for foreground. dims receives {width, height}
+	public static byte[] readRle(InputStream stream, int[] dims) throws IOException
+	{
+		DataInputStream in = new DataInputStream(stream);
+		if(in.readInt() != RLE_MAGIC)
+			throw new IOException("not an RLE bilevel image");
+		int version = in.readUnsignedShort();
+		if(version != RLE_VERSION)
+			throw new IOException("unsupported RLE version " + version);
+		in.readUnsignedShort();
+		final int w = in.readInt();
+		final int h = in.readInt();
+
+		byte[] pixels = new byte[w*h];
+		for(int y=0; y<h; ++y)
+		{
+			int x = 0;
+			boolean foreground = false;
+			while(true)
+			{
+				int run = readVarint(in);
+				if(run > w - x)
+					throw new IOException("run past the end of row " + y);
+				if(foreground)
+				{
+					for(int i=y*w+x; i<y*w+x+run; ++i)
+						pixels[i] = -1;
+				}
+				x += run;
+				if(x == w)
+					break;
+				foreground = !foreground;
+			}
+		}
+
+		dims[0] = w;
+		dims[1] = h;
+		return pixels;
+	}
+
+	private static int readVarint(DataInputStream in) throws IOException
+	{
+		int v = 0;
+		for(int shift=0; shift<35; shift+=7)
+		{
+			int b = in.read();
+			if(b < 0)
+				throw new EOFException();
+			v |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("bad varint");
+	}
+}
@@ -0,0 +1,208 @@
+package com.metze.scanner.core;
+
+import java.nio.ByteBuffer;
+
+//pure java version of ProcessTask.preProcessMat for running without OpenCV:
+// grayscale, invert, OR with the vertical sobel response, dilate with a 5x3 ellipse, then an otsu threshold.
+// output uses the StaffAnalyzer convention of -1 for foreground and 0 for background
+public class Binarizer
+{
+	//argb pixels, as returned by Bitmap.getPixels or BufferedImage.getRGB
+	public static byte[] binarize(int[] argb, int w, int h)
+	{
+		int[] dilated = preprocess(argb, w, h);
+		return threshold(dilated, otsuThreshold(dilated));
+	}
+
+	//binarize for 4 byte RGBA pixels (Bitmap.copyPixelsToBuffer), done in place: the binary image ends up in the first
+	// w*h bytes of rgba and the returned buffer is a view of them, so the whole pipeline runs in the one buffer.
+	// rows are preprocessed as they are read and only 4 gray and 3 combined rows are kept, and output row y is only
+	// written once input rows up to y+2 have been read, which is always below where row y+3 starts
+	public static ByteBuffer binarizeRgba(ByteBuffer rgba, int w, int h)
+	{
+		int[][] gray = new int[4][w];
+		int[][] combined = new int[3][w];
+		int grayRows = 0;
+		int combinedRows = 0;
+		long[] hist = new long[256];
+
+		for(int y=0; y<h; ++y)
+		{
+			//the combined rows dilating row y needs, and the gray rows those need
+			int lastCombined = Math.min(h-1, y+1);
+			for(; combinedRows<=lastCombined; ++combinedRows)
+			{
+				int r = combinedRows;
+				int up = (r > 0) ? r-1 : Math.min(1, h-1);
+				int down = (r < h-1) ? r+1 : Math.max(h-2, 0);
+				for(; grayRows<=Math.max(r, down); ++grayRows)
+					readGrayRow(rgba, w, grayRows, gray[grayRows & 3]);
+				combineRow(gray[up & 3], gray[r & 3], gray[down & 3], w, combined[r % 3]);
+			}
+
+			int[] above = (y > 0) ? combined[(y-1) % 3] : null;
+			int[] row = combined[y % 3];
+			int[] below = (y < h-1) ? combined[(y+1) % 3] : null;
+			int rowStart = y*w;
+			for(int x=0; x<w; ++x)
+			{
+				int max = 0;
+				for(int xi=Math.max(0, x-2); xi<=Math.min(w-1, x+2); ++xi)
+					max = Math.max(max, row[xi]);
+				if(above != null)
+					max = Math.max(max, above[x]);
+				if(below != null)
+					max = Math.max(max, below[x]);
+				rgba.put(rowStart+x, (byte)max);
+				hist[max]++;
+			}
+		}
+
+		int threshold = otsuThreshold(hist);
+		for(int i=0; i<w*h; ++i)
+			rgba.put(i, (byte)(((rgba.get(i) & 0xff) > threshold) ? -1 : 0));
+
+		ByteBuffer pixels = rgba.duplicate();
+		pixels.clear();
+		pixels.limit(w*h);
+		return pixels;
+	}
+
+	private static void readGrayRow(ByteBuffer rgba, int w, int y, int[] gray)
+	{
+		int i = 4*y*w;
+		for(int x=0; x<w; ++x, i+=4)
+			gray[x] = ((rgba.get(i) & 0xff)*4899 + (rgba.get(i+1) & 0xff)*9617 + (rgba.get(i+2) & 0xff)*1868 + 8192) >> 14;
+	}
+
+	private static void combineRow(int[] up, int[] gray, int[] down, int w, int[] combined)
+	{
+		for(int x=0; x<w; ++x)
+		{
+			int left = (x > 0) ? x-1 : Math.min(1, w-1);
+			int right = (x < w-1) ? x+1 : Math.max(w-2, 0);
+			int sobel = (down[left] + 2*down[x] + down[right]) - (up[left] + 2*up[x] + up[right]);
+			sobel = Math.max(0, Math.min(255, sobel));
+			combined[x] = (255 - gray[x]) | sobel;
+		}
+	}
+
+	//everything before the threshold, returns 0-255 values.
+	// rows within 2 of the top or bottom see the image border, so a strip of a page needs 2 rows of context on each side
+	public static int[] preprocess(int[] argb, int w, int h)
+	{
+		int[] gray = new int[w*h];
+		for(int i=0; i<w*h; ++i)
+		{
+			int c = argb[i];
+			int r = (c >> 16) & 0xff;
+			int g = (c >> 8) & 0xff;
+			int b = c & 0xff;
+			gray[i] = (r*4899 + g*9617 + b*1868 + 8192) >> 14;	//same fixed point weights as cvtColor
+		}
+
+		//invert and OR in the vertical derivative, which highlights the top and bottom edges of horizontal lines
+		int[] combined = new int[w*h];
+		for(int y=0; y<h; ++y)
+		{
+			int up = (y > 0) ? y-1 : Math.min(1, h-1);		//reflect 101 border like OpenCV
+			int down = (y < h-1) ? y+1 : Math.max(h-2, 0);
+			for(int x=0; x<w; ++x)
+			{
+				int left = (x > 0) ? x-1 : Math.min(1, w-1);
+				int right = (x < w-1) ? x+1 : Math.max(w-2, 0);
+
+				int sobel = (gray[down*w+left] + 2*gray[down*w+x] + gray[down*w+right])
+						- (gray[up*w+left] + 2*gray[up*w+x] + gray[up*w+right]);
+				sobel = Math.max(0, Math.min(255, sobel));
+
+				combined[y*w+x] = (255 - gray[y*w+x]) | sobel;
+			}
+		}
+
+		//dilate with the 5x3 ellipse, which is a full middle row plus the pixels directly above and below
+		int[] dilated = new int[w*h];
+		for(int y=0; y<h; ++y)
+		{
+			for(int x=0; x<w; ++x)
+			{
+				int max = 0;
+				for(int dx=-2; dx<=2; ++dx)
+				{
+					int xi = x+dx;
+					if(xi >= 0 && xi < w)
+						max = Math.max(max, combined[y*w+xi]);
+				}
+				if(y > 0)
+					max = Math.max(max, combined[(y-1)*w+x]);
+				if(y < h-1)
+					max = Math.max(max, combined[(y+1)*w+x]);
+				dilated[y*w+x] = max;
+			}
+		}
+
+		return dilated;
+	}
+
+	public static byte[] threshold(int[] values, int threshold)
+	{
+		byte[] pixels = new byte[values.length];
+		for(int i=0; i<values.length; ++i)
+		{
+			pixels[i] = (byte)((values[i] > threshold) ? -1 : 0);
+		}
+
+		return pixels;
+	}
+
+	public static int otsuThreshold(int[] gray)
+	{
+		long[] hist = new long[256];
+		accumulateHistogram(gray, 0, gray.length, hist);
+		return otsuThreshold(hist);
+	}
+
+	//adds values[start, end) to a 256 bin histogram, so a threshold can be built up a piece at a time
+	public static void accumulateHistogram(int[] values, int start, int end, long[] hist)
+	{
+		for(int i=start; i<end; ++i)
+			hist[values[i]]++;
+	}
+
+	public static int otsuThreshold(long[] hist)
+	{
+		double total = 0;
+		for(int i=0; i<256; ++i)
+			total += hist[i];
+
+		double sum = 0;
+		for(int i=0; i<256; ++i)
+			sum += i*(double)hist[i];
+
+		double sumBelow = 0;
+		double weightBelow = 0;
+		double bestVariance = -1;
+		int threshold = 0;
+		for(int i=0; i<256; ++i)
+		{
+			weightBelow += hist[i];
+			if(weightBelow == 0)
+				continue;
+			double weightAbove = total - weightBelow;
+			if(weightAbove == 0)
+				break;
+
+			sumBelow += i*(double)hist[i];
+			double meanBelow = sumBelow/weightBelow;
+			double meanAbove = (sum - sumBelow)/weightAbove;
+			double variance = weightBelow*weightAbove*(meanBelow-meanAbove)*(meanBelow-meanAbove);
+			if(variance > bestVariance)
+			{
+				bestVariance = variance;
+				threshold = i;
+			}
+		}
+
+		return threshold;
+	}
+}
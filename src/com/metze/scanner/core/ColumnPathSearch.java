@@ -0,0 +1,83 @@
+package com.metze.scanner.core;
+
+import java.nio.ByteBuffer;
+
+//the search StaffAnalyzer.shortestPath does, with the cost DP kept to two columns. the DP only reads column x-dir to
+// fill column x, and the path is walked from the start by choosing the cheapest of the 3 neighbors in the next column,
+// which is final as soon as the DP has filled it, so the walk runs one column behind the DP instead of afterwards.
+// subclasses keep the two columns in the number type they sum costs in, this class has the cone, the walk and the
+// mergeInto cut off they share
+public abstract class ColumnPathSearch
+{
+	protected final ByteBuffer mPixelBuffer;	//absolute get only, index y*w+x is pixel (x, y)
+	protected final int mWidth;
+	protected final int mHeight;
+
+	protected ColumnPathSearch(ByteBuffer pixels, int w, int h)
+	{
+		mPixelBuffer = pixels;
+		mWidth = w;
+		mHeight = h;
+	}
+
+	//this method assumes white is foreground/staff lines with an int val of -1 and black an int val of 0
+	public int[] shortestPath(int x, int xEnd, int y, boolean leftToRight)
+	{
+		return shortestPath(x, xEnd, y, leftToRight, null);
+	}
+
+	//same as StaffAnalyzer.shortestPath with mergeInto: once the walk has followed mergeInto for
+	// StaffAnalyzer.MERGE_COLUMNS columns, the rest of mergeInto is taken as the rest of the path and the DP stops
+	public int[] shortestPath(int x, int xEnd, int y, boolean leftToRight, int[] mergeInto)
+	{
+		int xStart = x;
+		int yStart = y;
+
+		int dir = 1;
+		if(!leftToRight)
+			dir = -1;
+
+		startSearch(y);
+
+		int path[] = new int[mWidth];
+		path[x] = y;
+		int merged = 0;
+		while(x != xEnd)
+		{
+			x+=dir;
+
+			//each move in x lets the path move up or down at most 1 row, so only the cone from the start is filled
+			int xDiff = Math.abs(x - xStart);
+			fillColumn(x, Math.max(0, yStart-xDiff), Math.min(mHeight-1, yStart+xDiff));
+
+			//column x is done, so the walk can step onto it
+			y = step(y, xDiff, x == xEnd);
+			if(x == xEnd)
+				break;
+			path[x] = y;
+
+			if(mergeInto != null)
+			{
+				merged = (mergeInto[x] == y) ? merged+1 : 0;
+				if(merged >= StaffAnalyzer.MERGE_COLUMNS)
+				{
+					for(x+=dir; x!=xEnd; x+=dir)
+						path[x] = mergeInto[x];
+					break;
+				}
+			}
+		}
+
+		return path;
+	}
+
+	//resets both cost columns for a search that starts on row y
+	protected abstract void startSearch(int y);
+
+	//fills rows yMin to yMax of column x from the previous column's costs
+	protected abstract void fillColumn(int x, int yMin, int yMax);
+
+	//returns the cheapest of rows y, y-1 and y+1 (in that order on a tie) of the column fillColumn just filled, and
+	// makes that column the previous one. xDiff is its distance from the start column, last is true on the end column
+	protected abstract int step(int y, int xDiff, boolean last);
+}
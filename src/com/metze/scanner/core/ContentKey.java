@@ -0,0 +1,86 @@
+package com.metze.scanner.core;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+//SHA-256 over decoded pixels plus the analysis parameters, used as the ResultCache key.
+// pixels can be added a row at a time so the image never has to be copied whole
+public class ContentKey
+{
+	private final MessageDigest mDigest;
+	private byte[] mScratch;
+
+	public ContentKey()
+	{
+		try
+		{
+			mDigest = MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-256 is not available", e);	//every java and android runtime has it
+		}
+		mScratch = new byte[0];
+	}
+
+	public ContentKey addInt(int v)
+	{
+		mDigest.update((byte)(v >>> 24));
+		mDigest.update((byte)(v >>> 16));
+		mDigest.update((byte)(v >>> 8));
+		mDigest.update((byte)v);
+		return this;
+	}
+
+	public ContentKey addString(String s)
+	{
+		try
+		{
+			byte[] bytes = s.getBytes("UTF-8");
+			addInt(bytes.length);
+			mDigest.update(bytes);
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		return this;
+	}
+
+	public ContentKey addPixels(int[] argb, int offset, int count)
+	{
+		if(mScratch.length < 4*count)
+			mScratch = new byte[4*count];
+
+		for(int i=0; i<count; ++i)
+		{
+			int v = argb[offset+i];
+			mScratch[4*i] = (byte)(v >>> 24);
+			mScratch[4*i+1] = (byte)(v >>> 16);
+			mScratch[4*i+2] = (byte)(v >>> 8);
+			mScratch[4*i+3] = (byte)v;
+		}
+		mDigest.update(mScratch, 0, 4*count);
+		return this;
+	}
+
+	public ContentKey addPixels(byte[] pixels, int offset, int count)
+	{
+		mDigest.update(pixels, offset, count);
+		return this;
+	}
+
+	//hex digest, the key can't be added to after this
+	public String finish()
+	{
+		byte[] hash = mDigest.digest();
+		StringBuilder sb = new StringBuilder(2*hash.length);
+		for(byte b : hash)
+		{
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
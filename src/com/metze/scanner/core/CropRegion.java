@@ -0,0 +1,96 @@
+package com.metze.scanner.core;
+
+//a crop rectangle in the pixel coordinates of the source image file, and the subsampling to decode it at.
+// the crop is drawn over a scaled down preview, so it is mapped back through the preview's on screen transform and
+// the preview's own decode scale. decoding only this region at the chosen sample size means decode time, memory
+// and every later stage scale with the crop rather than the photo
+public class CropRegion
+{
+	private final int mLeft;
+	private final int mTop;
+	private final int mRight;		//exclusive
+	private final int mBottom;		//exclusive
+
+	public CropRegion(int left, int top, int right, int bottom)
+	{
+		mLeft = left;
+		mTop = top;
+		mRight = right;
+		mBottom = bottom;
+	}
+
+	//maps a rectangle in view coordinates to the source file. the preview bitmap is drawn at
+	// view = bitmap*scale + translate (the ImageView's image matrix), and one preview pixel covers sourcePerPreviewPixel
+	// source pixels (the inSampleSize it was decoded with, or source width/preview width).
+	// the result is clamped to the source and is at least 1x1
+	public static CropRegion fromView(float left, float top, float right, float bottom,
+			float translateX, float translateY, float scaleX, float scaleY,
+			float sourcePerPreviewPixel, int sourceWidth, int sourceHeight)
+	{
+		float toSourceX = sourcePerPreviewPixel/scaleX;
+		float toSourceY = sourcePerPreviewPixel/scaleY;
+		int x0 = clamp((int)Math.floor((Math.min(left, right) - translateX)*toSourceX), 0, sourceWidth-1);
+		int y0 = clamp((int)Math.floor((Math.min(top, bottom) - translateY)*toSourceY), 0, sourceHeight-1);
+		int x1 = clamp((int)Math.ceil((Math.max(left, right) - translateX)*toSourceX), x0+1, sourceWidth);
+		int y1 = clamp((int)Math.ceil((Math.max(top, bottom) - translateY)*toSourceY), y0+1, sourceHeight);
+		return new CropRegion(x0, y0, x1, y1);
+	}
+
+	//the whole of a w x h source
+	public static CropRegion full(int sourceWidth, int sourceHeight)
+	{
+		return new CropRegion(0, 0, sourceWidth, sourceHeight);
+	}
+
+	//smallest power of two subsampling that brings the region down to at most maxPixels, which is what
+	// BitmapFactory.Options.inSampleSize and BitmapRegionDecoder honor exactly
+	public int getSampleSize(long maxPixels)
+	{
+		int sampleSize = 1;
+		while((long)(getWidth()/sampleSize)*(getHeight()/sampleSize) > maxPixels)
+			sampleSize *= 2;
+		return sampleSize;
+	}
+
+	public int getLeft()
+	{
+		return mLeft;
+	}
+
+	public int getTop()
+	{
+		return mTop;
+	}
+
+	public int getRight()
+	{
+		return mRight;
+	}
+
+	public int getBottom()
+	{
+		return mBottom;
+	}
+
+	public int getWidth()
+	{
+		return mRight - mLeft;
+	}
+
+	public int getHeight()
+	{
+		return mBottom - mTop;
+	}
+
+	//for cache keys and logs
+	@Override
+	public String toString()
+	{
+		return mLeft + "," + mTop + "," + mRight + "," + mBottom;
+	}
+
+	private static int clamp(int v, int min, int max)
+	{
+		return Math.max(min, Math.min(max, v));
+	}
+}
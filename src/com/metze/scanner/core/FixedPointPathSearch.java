@@ -0,0 +1,74 @@
+package com.metze.scanner.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//RollingPathSearch with integer costs: every weight is scaled by 1000 and rounded, so a straight step costs 1000,
+// a diagonal one 1414 and a background pixel 5000 on top, and the whole DP is integer adds and compares.
+// sums are exact, where the float searches round once the costs grow past a few thousand, so two paths that only
+// tie in one of the cost models can be broken differently. CostModelCheck compares the stable paths of both.
+// costs saturate at UNREACHED instead of overflowing. scratch memory is 2*h ints
+public class FixedPointPathSearch extends ColumnPathSearch
+{
+	public static final int STRAIGHT = 1000;
+	public static final int DIAGONAL = 1414;
+	public static final int BACKGROUND = 5000;	//k*(pixel+1) for a background pixel, 0 on foreground
+	//far below Integer.MAX_VALUE, so adding one step to it can't overflow before it is clamped
+	private static final int UNREACHED = Integer.MAX_VALUE/2;
+
+	private int[] mPrevCost;
+	private int[] mCurCost;
+
+	public FixedPointPathSearch(ByteBuffer pixels, int w, int h)
+	{
+		super(pixels, w, h);
+
+		mPrevCost = new int[h];
+		mCurCost = new int[h];
+	}
+
+	@Override
+	protected void startSearch(int y)
+	{
+		Arrays.fill(mPrevCost, UNREACHED);
+		Arrays.fill(mCurCost, UNREACHED);
+		mPrevCost[y] = 0;
+	}
+
+	//the pixel is -1 on foreground and 0 on background, so BACKGROUND*(pixel+1) is the scaled k*(pixel+1) of the float searches
+	@Override
+	protected void fillColumn(int x, int yIndexMin, int yIndexMax)
+	{
+		for(int yi=yIndexMin; yi<=yIndexMax; ++yi)
+		{
+			int cost = mPrevCost[yi] + STRAIGHT;
+			if(yi > 0)
+				cost = Math.min(cost, mPrevCost[yi-1] + DIAGONAL);
+			if(yi < mHeight-1)
+				cost = Math.min(cost, mPrevCost[yi+1] + DIAGONAL);
+			cost += BACKGROUND*(mPixelBuffer.get(yi*mWidth+x) + 1);
+			mCurCost[yi] = Math.min(cost, UNREACHED);
+		}
+	}
+
+	@Override
+	protected int step(int y, int xDiff, boolean last)
+	{
+		int bestCost = mCurCost[y];
+		int bestY = y;
+		if(y > 0 && mCurCost[y-1] < bestCost)
+		{
+			bestCost = mCurCost[y-1];
+			bestY = y-1;
+		}
+		if(y < mHeight-1 && mCurCost[y+1] < bestCost)
+		{
+			bestY = y+1;
+		}
+
+		int[] tmp = mPrevCost;
+		mPrevCost = mCurCost;
+		mCurCost = tmp;
+		return bestY;
+	}
+}
@@ -0,0 +1,373 @@
+package com.metze.scanner.core;
+
+import java.util.Arrays;
+
+//continuous staff detection on a stream of frames, e.g. a camera preview.
+// frames are handed in with submit and processed one at a time on a worker thread. a frame that arrives while another
+// is still waiting replaces it, so the newest frame always wins and a slow frame never builds up a queue.
+// each frame only goes through the fast part of the pipeline: it is shrunk by the current scale, keeping the darkest
+// pixel of each block so thin lines survive, thresholded and projected straight into a histogram, and
+// StaffLineStats finds the lines from that. there is no binary image and no stable path search.
+// the scale adapts to keep the processing time of a frame within the latency budget.
+// input is 8 bit luminance (0 black, 255 white), which is the Y plane at the start of an android NV21 preview frame
+public class FrameProcessor
+{
+	protected static final String TAG = "FrameProcessor";
+	public static final int MAX_SCALE = 8;
+
+	//how many frames in a row have to come in under half the budget before the scale goes back down
+	private static final int FRAMES_BEFORE_UPSCALE = 10;
+
+	//called on the worker thread for every processed frame
+	public interface Listener
+	{
+		void onFrame(FrameResult result);
+	}
+
+	//staff lines found in one frame, in the frame's full resolution coordinates
+	public static class FrameResult
+	{
+		private final long mTimestampNanos;
+		private final int mWidth;
+		private final int mHeight;
+		private final int mScale;
+		private final int[] mLineRows;
+		private final int mStaffLineThickness;
+		private final int mStaffLineSpacing;
+		private final int mNumStaffs;
+		private final long mProcessingNanos;
+		private final long mLatencyNanos;
+
+		FrameResult(long timestampNanos, int w, int h, int scale, int[] lineRows, int thickness, int spacing,
+				int numStaffs, long processingNanos, long latencyNanos)
+		{
+			mTimestampNanos = timestampNanos;
+			mWidth = w;
+			mHeight = h;
+			mScale = scale;
+			mLineRows = lineRows;
+			mStaffLineThickness = thickness;
+			mStaffLineSpacing = spacing;
+			mNumStaffs = numStaffs;
+			mProcessingNanos = processingNanos;
+			mLatencyNanos = latencyNanos;
+		}
+
+		//as passed to submit
+		public long getTimestampNanos()
+		{
+			return mTimestampNanos;
+		}
+
+		public int getWidth()
+		{
+			return mWidth;
+		}
+
+		public int getHeight()
+		{
+			return mHeight;
+		}
+
+		//the frame was shrunk by this factor in each direction, so positions are accurate to this many rows
+		public int getScale()
+		{
+			return mScale;
+		}
+
+		//center row of each staff line, top to bottom
+		public int[] getLineRows()
+		{
+			return mLineRows;
+		}
+
+		public int getStaffLineSize()
+		{
+			return mStaffLineThickness;
+		}
+
+		public int getStaffSpaceSize()
+		{
+			return mStaffLineSpacing;
+		}
+
+		public int getNumStaffs()
+		{
+			return mNumStaffs;
+		}
+
+		//time spent on this frame by the worker
+		public long getProcessingNanos()
+		{
+			return mProcessingNanos;
+		}
+
+		//from submit to the result, including the time the frame waited for the worker
+		public long getLatencyNanos()
+		{
+			return mLatencyNanos;
+		}
+	}
+
+	private final Listener mListener;
+	private final long mBudgetNanos;
+	private final int mMinScale;
+	private final Object mLock;
+
+	//the waiting frame, filled by submit
+	private byte[] mPending;
+	private int mPendingWidth;
+	private int mPendingHeight;
+	private long mPendingTimestamp;
+	private boolean mHasPending;
+
+	private byte[] mWorking;		//the frame the worker is on, swapped with mPending
+	private int[] mPooled;			//the shrunk frame
+	private volatile int mScale;	//only changed by the worker
+	private int mFastFrames;
+
+	private Thread mWorker;
+	private volatile boolean mRunning;
+
+	private long mSubmitted;
+	private long mDropped;
+	private long mProcessed;
+
+	//budgetMillis is the processing time per frame to stay under, minScale the smallest factor frames are shrunk by
+	public FrameProcessor(Listener listener, long budgetMillis, int minScale)
+	{
+		mListener = listener;
+		mBudgetNanos = budgetMillis*1000000L;
+		mMinScale = Math.max(1, Math.min(MAX_SCALE, minScale));
+		mLock = new Object();
+
+		mPending = null;
+		mHasPending = false;
+		mWorking = null;
+		mPooled = null;
+		mScale = mMinScale;
+		mFastFrames = 0;
+		mWorker = null;
+		mRunning = false;
+	}
+
+	public void start()
+	{
+		synchronized(mLock)
+		{
+			if(mWorker != null)
+				return;
+			mRunning = true;
+			mWorker = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					workLoop();
+				}
+			}, TAG);
+			mWorker.start();
+		}
+	}
+
+	//stops the worker after the frame it is on, a waiting frame is dropped
+	public void stop() throws InterruptedException
+	{
+		Thread worker;
+		synchronized(mLock)
+		{
+			worker = mWorker;
+			mRunning = false;
+			mLock.notifyAll();
+		}
+		if(worker != null)
+			worker.join();
+		synchronized(mLock)
+		{
+			mWorker = null;
+			if(mHasPending)
+				++mDropped;
+			mHasPending = false;
+		}
+	}
+
+	//copies the first w*h bytes of luma, so the caller can reuse its buffer (e.g. hand it back to the camera) right away.
+	// a frame that is still waiting is replaced and counted as dropped. timestampNanos is on the System.nanoTime clock
+	public void submit(byte[] luma, int w, int h, long timestampNanos)
+	{
+		synchronized(mLock)
+		{
+			if(mPending == null || mPending.length < w*h)
+				mPending = new byte[w*h];
+			System.arraycopy(luma, 0, mPending, 0, w*h);
+			mPendingWidth = w;
+			mPendingHeight = h;
+			mPendingTimestamp = timestampNanos;
+
+			++mSubmitted;
+			if(mHasPending)
+				++mDropped;
+			mHasPending = true;
+			mLock.notifyAll();
+		}
+	}
+
+	public long getSubmittedFrames()
+	{
+		synchronized(mLock)
+		{
+			return mSubmitted;
+		}
+	}
+
+	public long getDroppedFrames()
+	{
+		synchronized(mLock)
+		{
+			return mDropped;
+		}
+	}
+
+	public long getProcessedFrames()
+	{
+		synchronized(mLock)
+		{
+			return mProcessed;
+		}
+	}
+
+	private void workLoop()
+	{
+		while(true)
+		{
+			int w, h;
+			long timestamp;
+			synchronized(mLock)
+			{
+				while(mRunning && !mHasPending)
+				{
+					try
+					{
+						mLock.wait();
+					}
+					catch(InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if(!mRunning)
+					return;
+
+				//take the waiting frame and leave the buffer just used for the next submit
+				byte[] tmp = mWorking;
+				mWorking = mPending;
+				mPending = tmp;
+				mHasPending = false;
+				w = mPendingWidth;
+				h = mPendingHeight;
+				timestamp = mPendingTimestamp;
+			}
+
+			FrameResult result = processFrame(mWorking, w, h, timestamp);
+			synchronized(mLock)
+			{
+				++mProcessed;
+			}
+			if(mListener != null)
+				mListener.onFrame(result);
+		}
+	}
+
+	//runs one frame on the calling thread at the current scale, and adjusts the scale for the next one
+	FrameResult processFrame(byte[] luma, int w, int h, long timestampNanos)
+	{
+		long start = System.nanoTime();
+		final int scale = mScale;
+		final int pw = w/scale;
+		final int ph = h/scale;
+
+		//shrink, keeping the darkest pixel of each block, inverted so ink is high, and histogram it for the threshold
+		if(mPooled == null || mPooled.length < pw*ph)
+			mPooled = new int[pw*ph];
+		long[] valueHist = new long[256];
+		for(int py=0; py<ph; ++py)
+		{
+			for(int px=0; px<pw; ++px)
+			{
+				int darkest = 255;
+				for(int y=py*scale; y<(py+1)*scale; ++y)
+				{
+					int row = y*w;
+					for(int x=px*scale; x<(px+1)*scale; ++x)
+						darkest = Math.min(darkest, luma[row+x] & 0xff);
+				}
+				int ink = 255 - darkest;
+				mPooled[py*pw+px] = ink;
+				valueHist[ink]++;
+			}
+		}
+
+		int threshold = Binarizer.otsuThreshold(valueHist);
+		int[] projection = new int[ph];
+		for(int py=0; py<ph; ++py)
+		{
+			int count = 0;
+			for(int px=0; px<pw; ++px)
+			{
+				if(mPooled[py*pw+px] > threshold)
+					++count;
+			}
+			projection[py] = count;
+		}
+
+		StaffLineStats stats = new StaffLineStats(projection, pw);
+		stats.findStaffLinePositions();
+		stats.calcStaffSpacingAndThickness();
+
+		int[] lineRows = new int[stats.getTotalStaffLines()];
+		int lines = 0;
+		for(int py=0; py<ph && lines<lineRows.length; ++py)
+		{
+			if(!stats.isStaffLineAt(py))
+				continue;
+			int top = py;
+			while(py+1 < ph && stats.isStaffLineAt(py+1))
+				++py;
+			lineRows[lines++] = (top+py+1)*scale/2;		//center of the run, back in frame rows
+		}
+		if(lines < lineRows.length)
+			lineRows = Arrays.copyOf(lineRows, lines);
+
+		long end = System.nanoTime();
+		adjustScale(end - start);
+		return new FrameResult(timestampNanos, w, h, scale, lineRows, stats.getStaffLineSize()*scale,
+				stats.getStaffSpaceSize()*scale, stats.getNumStaffs(), end - start, end - timestampNanos);
+	}
+
+	//over budget shrinks the next frame more, a run of frames well under budget shrinks it less
+	private void adjustScale(long processingNanos)
+	{
+		if(processingNanos > mBudgetNanos)
+		{
+			mFastFrames = 0;
+			if(mScale < MAX_SCALE)
+				++mScale;
+		}
+		else if(processingNanos < mBudgetNanos/2 && mScale > mMinScale)
+		{
+			if(++mFastFrames >= FRAMES_BEFORE_UPSCALE)
+			{
+				--mScale;
+				mFastFrames = 0;
+			}
+		}
+		else
+			mFastFrames = 0;
+	}
+
+	public int getScale()
+	{
+		return mScale;
+	}
+}
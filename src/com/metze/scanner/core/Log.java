@@ -0,0 +1,25 @@
+package com.metze.scanner.core;
+
+//platform neutral logging for the analysis core.
+// messages are dropped until a sink is set, the android app forwards them to android.util.Log
+public class Log
+{
+	public interface Sink
+	{
+		void i(String tag, String msg);
+	}
+
+	private static volatile Sink sSink = null;
+
+	public static void setSink(Sink sink)
+	{
+		sSink = sink;
+	}
+
+	public static void i(String tag, String msg)
+	{
+		Sink sink = sSink;
+		if(sink != null)
+			sink.i(tag, msg);
+	}
+}
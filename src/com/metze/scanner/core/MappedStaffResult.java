@@ -0,0 +1,198 @@
+package com.metze.scanner.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+//read only view of a file written by StaffResultWriter. the file is memory mapped and every getter reads
+// straight from the mapping, so querying the measurements, a single path or a few pixels of a large archive
+// of pages costs neither parsing nor heap for the parts that aren't touched
+public class MappedStaffResult
+{
+	private final ByteBuffer mBuffer;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mPathLeftBound;
+	private final int mPathRightBound;
+	private final int mNumPaths;
+	private final int mImageOffset;
+	private final int mWordsPerRow;
+
+	public MappedStaffResult(ByteBuffer buffer) throws IOException
+	{
+		mBuffer = buffer;
+		if(buffer.capacity() < StaffResultWriter.HEADER_SIZE || buffer.getInt(0) != StaffResultWriter.MAGIC)
+			throw new IOException("not a staff result file");
+		int version = buffer.getShort(4) & 0xffff;
+		if(version != StaffResultWriter.VERSION)
+			throw new IOException("unsupported staff result version " + version);
+
+		mWidth = buffer.getInt(8);
+		mHeight = buffer.getInt(12);
+		mPathLeftBound = buffer.getInt(32);
+		mPathRightBound = buffer.getInt(36);
+		mNumPaths = buffer.getInt(40);
+		mImageOffset = buffer.getInt(44);
+		mWordsPerRow = (mWidth + 63) >>> 6;
+
+		long indexEnd = StaffResultWriter.HEADER_SIZE + 4L*(mNumPaths+1);
+		long imageEnd = mImageOffset + 8L*mWordsPerRow*mHeight;
+		if(mWidth <= 0 || mHeight <= 0 || mNumPaths < 0 || mPathLeftBound < 0 || mPathRightBound >= mWidth
+				|| mPathLeftBound > mPathRightBound || indexEnd > buffer.capacity()
+				|| (hasImage() && (mImageOffset < indexEnd || imageEnd > buffer.capacity())))
+			throw new IOException("corrupt staff result file");
+
+		//the paths lie one after the other between the index and the image, each at least a byte per column,
+		// so getStablePath can't be sent outside them
+		long pathsEnd = hasImage() ? mImageOffset : buffer.capacity();
+		long columns = mPathRightBound - mPathLeftBound + 1;
+		long prev = buffer.getInt(StaffResultWriter.HEADER_SIZE);
+		if(prev < indexEnd)
+			throw new IOException("corrupt staff result file");
+		for(int i=1; i<=mNumPaths; ++i)
+		{
+			long offset = buffer.getInt(StaffResultWriter.HEADER_SIZE + 4*i);
+			if(offset - prev < columns || offset > pathsEnd)
+				throw new IOException("corrupt staff result file");
+			prev = offset;
+		}
+	}
+
+	public static MappedStaffResult open(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());	//stays valid after the channel is closed
+			return new MappedStaffResult(buffer);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+	public int getStaffLineSize()
+	{
+		return mBuffer.getInt(16);
+	}
+
+	public int getStaffSpaceSize()
+	{
+		return mBuffer.getInt(20);
+	}
+
+	public int getTotalStaffLines()
+	{
+		return mBuffer.getInt(24);
+	}
+
+	public int getNumStaffs()
+	{
+		return mBuffer.getInt(28);
+	}
+
+	public int getPathLeftBound()
+	{
+		return mPathLeftBound;
+	}
+
+	public int getPathRightBound()
+	{
+		return mPathRightBound;
+	}
+
+	public int getNumStablePaths()
+	{
+		return mNumPaths;
+	}
+
+	public boolean hasImage()
+	{
+		return (mBuffer.getShort(6) & StaffResultWriter.FLAG_HAS_IMAGE) != 0;
+	}
+
+	//decodes stable path i into path, which must hold getWidth() values. columns outside the path bounds are 0.
+	// throws IllegalStateException if the path's bytes don't decode to one y per column
+	public int[] getStablePath(int i, int[] path)
+	{
+		if(i < 0 || i >= mNumPaths)
+			throw new IndexOutOfBoundsException("path " + i + " of " + mNumPaths);
+		if(path == null)
+			path = new int[mWidth];
+
+		int pos = mBuffer.getInt(StaffResultWriter.HEADER_SIZE + 4*i);
+		int end = mBuffer.getInt(StaffResultWriter.HEADER_SIZE + 4*(i+1));
+		int y = 0;
+		for(int x=0; x<mPathLeftBound; ++x)
+			path[x] = 0;
+		for(int x=mPathLeftBound; x<=mPathRightBound; ++x)
+		{
+			//zigzag varint, an int takes at most 5 bytes
+			int v = 0;
+			int shift = 0;
+			int b;
+			do
+			{
+				if(pos >= end || shift > 28)
+					throw new IllegalStateException("corrupt stable path " + i);
+				b = mBuffer.get(pos++);
+				v |= (b & 0x7f) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+
+			y += (v >>> 1) ^ -(v & 1);
+			path[x] = y;
+		}
+		for(int x=mPathRightBound+1; x<mWidth; ++x)
+			path[x] = 0;
+		return path;
+	}
+
+	//true if (x, y) is foreground in the stored cleaned image
+	public boolean isForeground(int x, int y)
+	{
+		if(!hasImage())
+			throw new IllegalStateException("no image stored");
+		long word = mBuffer.getLong(mImageOffset + 8*(y*mWordsPerRow + (x >>> 6)));
+		return (word & (1L << x)) != 0;
+	}
+
+	//loads everything onto the heap, for callers that want the whole result anyway
+	public AnalysisResult toAnalysisResult()
+	{
+		List<int[]> paths = new ArrayList<int[]>(mNumPaths);
+		for(int i=0; i<mNumPaths; ++i)
+			paths.add(getStablePath(i, null));
+
+		byte[] pixels = null;
+		if(hasImage())
+		{
+			PackedBinaryImage packed = new PackedBinaryImage(mWidth, mHeight);
+			long[] words = packed.getWords();
+			for(int i=0; i<words.length; ++i)
+				words[i] = mBuffer.getLong(mImageOffset + 8*i);
+			pixels = new byte[mWidth*mHeight];
+			packed.unpack(pixels);
+		}
+
+		return new AnalysisResult(mWidth, mHeight, getStaffLineSize(), getStaffSpaceSize(),
+				getTotalStaffLines(), getNumStaffs(), mPathLeftBound, mPathRightBound, paths, pixels);
+	}
+}
@@ -0,0 +1,104 @@
+package com.metze.scanner.core;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+//writes output files one at a time on a background thread, so image encoding and disk I/O stay off the thread that
+// produced the result (ProcessTask's background thread on android, the analysis workers in BatchProcessor). jobs run
+// in the order they were submitted. at most maxPending jobs wait at once, submit blocks beyond that, so a slow disk
+// holds the producer back instead of piling up finished images in memory. that also means submit must never be
+// called on the UI thread. a job that fails is logged and counted, the rest still run
+public class OutputQueue
+{
+	protected static final String TAG = "OutputQueue";
+
+	public interface Job
+	{
+		void write() throws IOException;
+	}
+
+	private final ExecutorService mExecutor;
+	private final Semaphore mPending;
+	private final int mMaxPending;
+	private volatile int mFailedJobs;
+
+	public OutputQueue(final String threadName, int maxPending)
+	{
+		mMaxPending = Math.max(1, maxPending);
+		mPending = new Semaphore(mMaxPending);
+		mFailedJobs = 0;
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, threadName);
+				thread.setDaemon(true);		//don't keep a process alive for its output alone, shutdown waits for it
+				return thread;
+			}
+		});
+	}
+
+	//description names the job in the log if it fails
+	public void submit(final String description, final Job job) throws InterruptedException
+	{
+		mPending.acquire();
+		try
+		{
+			mExecutor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						job.write();
+					}
+					catch(IOException e)
+					{
+						++mFailedJobs;
+						Log.i(TAG, description + " failed: " + e.getMessage());
+					}
+					catch(RuntimeException e)
+					{
+						++mFailedJobs;
+						Log.i(TAG, description + " failed: " + e);
+					}
+					finally
+					{
+						mPending.release();
+					}
+				}
+			});
+		}
+		catch(RuntimeException e)
+		{
+			mPending.release();		//rejected after shutdown
+			throw e;
+		}
+	}
+
+	//waits until every job submitted so far has run
+	public void drain() throws InterruptedException
+	{
+		mPending.acquire(mMaxPending);
+		mPending.release(mMaxPending);
+	}
+
+	//runs what is queued and stops the thread, later submits are rejected
+	public void shutdown() throws InterruptedException
+	{
+		mExecutor.shutdown();
+		mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	//only updated by the writer thread
+	public int getFailedJobs()
+	{
+		return mFailedJobs;
+	}
+}
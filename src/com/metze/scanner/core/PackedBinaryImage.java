@@ -0,0 +1,136 @@
+package com.metze.scanner.core;
+
+import java.nio.ByteBuffer;
+
+//binary image with one bit per pixel, each row stored as 64 pixel words.
+// bit (x & 63) of word (x >> 6) in a row is pixel x, and a set bit is a foreground (non zero) pixel.
+// bits past the image width are always 0, so whole word popcounts can be summed per row
+public class PackedBinaryImage
+{
+	private final long[] mBits;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mWordsPerRow;
+
+	public PackedBinaryImage(int w, int h)
+	{
+		mWidth = w;
+		mHeight = h;
+		mWordsPerRow = (w + 63) >>> 6;
+		mBits = new long[mWordsPerRow*h];
+	}
+
+	//packs a StaffAnalyzer style buffer, any non zero pixel is foreground
+	public static PackedBinaryImage pack(byte[] pixels, int w, int h)
+	{
+		return pack(ByteBuffer.wrap(pixels), w, h);
+	}
+
+	public static PackedBinaryImage pack(ByteBuffer pixels, int w, int h)
+	{
+		PackedBinaryImage image = new PackedBinaryImage(w, h);
+		for(int y=0; y<h; ++y)
+		{
+			int rowStart = y*w;
+			int wordIndex = y*image.mWordsPerRow;
+			for(int x=0; x<w; x+=64)
+			{
+				int end = Math.min(64, w-x);
+				long word = 0;
+				for(int bit=0; bit<end; ++bit)
+				{
+					if(pixels.get(rowStart+x+bit) != 0)
+						word |= 1L << bit;
+				}
+				image.mBits[wordIndex++] = word;
+			}
+		}
+		return image;
+	}
+
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+	public int getWordsPerRow()
+	{
+		return mWordsPerRow;
+	}
+
+	//the backing words, row y starts at y*getWordsPerRow()
+	public long[] getWords()
+	{
+		return mBits;
+	}
+
+	public boolean get(int x, int y)
+	{
+		return (mBits[y*mWordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+	}
+
+	public void set(int x, int y, boolean foreground)
+	{
+		int index = y*mWordsPerRow + (x >>> 6);
+		if(foreground)
+			mBits[index] |= 1L << x;
+		else
+			mBits[index] &= ~(1L << x);
+	}
+
+	//number of foreground pixels in row y
+	public int rowCount(int y)
+	{
+		int count = 0;
+		int index = y*mWordsPerRow;
+		for(int i=0; i<mWordsPerRow; ++i)
+		{
+			count += Long.bitCount(mBits[index+i]);
+		}
+		return count;
+	}
+
+	//fills hist[y] with the number of foreground pixels in each row
+	public void horizontalProjection(int[] hist)
+	{
+		for(int y=0; y<mHeight; ++y)
+		{
+			hist[y] = rowCount(y);
+		}
+	}
+
+	//clears column x from yTop to yBot inclusive
+	public void clearColumn(int x, int yTop, int yBot)
+	{
+		int word = x >>> 6;
+		long mask = ~(1L << x);
+		for(int y=yTop; y<=yBot; ++y)
+		{
+			mBits[y*mWordsPerRow + word] &= mask;
+		}
+	}
+
+	//writes the image back out as a StaffAnalyzer style buffer, -1 for foreground and 0 for background
+	public void unpack(byte[] pixels)
+	{
+		for(int y=0; y<mHeight; ++y)
+		{
+			int rowStart = y*mWidth;
+			int wordIndex = y*mWordsPerRow;
+			for(int x=0; x<mWidth; x+=64)
+			{
+				long word = mBits[wordIndex++];
+				int end = Math.min(64, mWidth-x);
+				for(int bit=0; bit<end; ++bit)
+				{
+					pixels[rowStart+x+bit] = (byte)(((word >>> bit) & 1L) != 0 ? -1 : 0);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package com.metze.scanner.core;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+//wall time and allocated bytes per pipeline stage, plus named counters, for one image.
+// stages run one at a time on the thread that calls startStage/endStage; counters can be added from any thread.
+// allocation is measured on the calling thread only, so work handed to other threads (setParallelSearch) isn't counted.
+// it is -1 until a platform counter is set, the JVM tools use ThreadMXBean and the android app uses Debug
+public class PipelineMetrics
+{
+	public interface AllocationCounter
+	{
+		//bytes allocated so far by the current thread
+		long allocatedBytes();
+	}
+
+	public static final String SHORTEST_PATH_CALLS = "shortest_path_calls";
+	public static final String REVERSE_SEARCH_REUSES = "reverse_search_reuses";
+	public static final String STABLE_PATHS = "stable_paths";
+	public static final String COARSE_PATH_CALLS = "coarse_path_calls";
+	public static final String DUPLICATE_PATHS = "duplicate_paths";
+	public static final String CLIPPED_SEEDS = "clipped_seeds";
+
+	private static volatile AllocationCounter sAllocationCounter = null;
+
+	private final LinkedHashMap<String, long[]> mStages;	//name -> {nanos, allocated bytes}, in the order first run
+	private final LinkedHashMap<String, Long> mCounters;
+	private String mCurrentStage;
+	private long mStageStartNanos;
+	private long mStageStartBytes;
+
+	public PipelineMetrics()
+	{
+		mStages = new LinkedHashMap<String, long[]>();
+		mCounters = new LinkedHashMap<String, Long>();
+		mCurrentStage = null;
+	}
+
+	public static void setAllocationCounter(AllocationCounter counter)
+	{
+		sAllocationCounter = counter;
+	}
+
+	private static long allocatedBytes()
+	{
+		AllocationCounter counter = sAllocationCounter;
+		return (counter != null) ? counter.allocatedBytes() : -1;
+	}
+
+	//starts timing a stage, ending the previous one if it is still open. a stage run twice is accumulated
+	public synchronized void startStage(String name)
+	{
+		if(mCurrentStage != null)
+			endStage();
+		mCurrentStage = name;
+		mStageStartBytes = allocatedBytes();
+		mStageStartNanos = System.nanoTime();
+	}
+
+	public synchronized void endStage()
+	{
+		if(mCurrentStage == null)
+			return;
+
+		long nanos = System.nanoTime() - mStageStartNanos;
+		long bytes = (mStageStartBytes < 0) ? -1 : allocatedBytes() - mStageStartBytes;
+
+		long[] stage = mStages.get(mCurrentStage);
+		if(stage == null)
+			mStages.put(mCurrentStage, new long[] {nanos, bytes});
+		else
+		{
+			stage[0] += nanos;
+			stage[1] = (stage[1] < 0 || bytes < 0) ? -1 : stage[1] + bytes;
+		}
+		mCurrentStage = null;
+	}
+
+	public synchronized void addCount(String counter, long n)
+	{
+		Long old = mCounters.get(counter);
+		mCounters.put(counter, (old != null) ? old + n : n);
+	}
+
+	public synchronized void reset()
+	{
+		mStages.clear();
+		mCounters.clear();
+		mCurrentStage = null;
+	}
+
+	public synchronized Snapshot snapshot()
+	{
+		LinkedHashMap<String, long[]> stages = new LinkedHashMap<String, long[]>();
+		for(Map.Entry<String, long[]> e : mStages.entrySet())
+			stages.put(e.getKey(), e.getValue().clone());
+		return new Snapshot(stages, new LinkedHashMap<String, Long>(mCounters));
+	}
+
+	//immutable copy of the metrics at one point in time
+	public static class Snapshot
+	{
+		private final Map<String, long[]> mStages;
+		private final Map<String, Long> mCounters;
+
+		private Snapshot(Map<String, long[]> stages, Map<String, Long> counters)
+		{
+			mStages = Collections.unmodifiableMap(stages);
+			mCounters = Collections.unmodifiableMap(counters);
+		}
+
+		//stage names in the order they first ran
+		public Iterable<String> getStageNames()
+		{
+			return mStages.keySet();
+		}
+
+		public long getStageNanos(String stage)
+		{
+			long[] s = mStages.get(stage);
+			return (s != null) ? s[0] : 0;
+		}
+
+		//-1 if allocation isn't measured on this platform
+		public long getStageAllocatedBytes(String stage)
+		{
+			long[] s = mStages.get(stage);
+			return (s != null) ? s[1] : 0;
+		}
+
+		public long getCount(String counter)
+		{
+			Long n = mCounters.get(counter);
+			return (n != null) ? n : 0;
+		}
+
+		public Map<String, Long> getCounters()
+		{
+			return mCounters;
+		}
+
+		public String toJson()
+		{
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"stages\":[");
+			boolean first = true;
+			for(Map.Entry<String, long[]> e : mStages.entrySet())
+			{
+				if(!first)
+					sb.append(',');
+				first = false;
+				sb.append("{\"name\":\"").append(e.getKey()).append("\",\"millis\":")
+					.append(String.format(Locale.US, "%.3f", e.getValue()[0]/1e6))
+					.append(",\"allocated_bytes\":").append(e.getValue()[1]).append('}');
+			}
+			sb.append("],\"counters\":{");
+			first = true;
+			for(Map.Entry<String, Long> e : mCounters.entrySet())
+			{
+				if(!first)
+					sb.append(',');
+				first = false;
+				sb.append('"').append(e.getKey()).append("\":").append(e.getValue());
+			}
+			sb.append("}}");
+			return sb.toString();
+		}
+
+		public void writeJson(File file) throws IOException
+		{
+			Writer out = new FileWriter(file);
+			try
+			{
+				out.write(toJson());
+				out.write('\n');
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+	}
+}
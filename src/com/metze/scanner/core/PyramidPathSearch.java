@@ -0,0 +1,167 @@
+package com.metze.scanner.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+//coarse to fine version of the per row stable path search. it runs about 2-3x fewer full resolution searches on
+// sparse pages and less than 2x fewer on dense ones, and is approximate: it finds the per row search's paths on the
+// bundled images, but nothing guarantees it (see below).
+// a seed row y is stable only if the reverse search from its right end comes back to y-1, y or y+1 at xStart+1,
+// so the only seeds worth a forward search are the rows next to where some reverse search lands.
+// the image is first shrunk by a factor (a coarse pixel is foreground if any pixel under it is) and every coarse row
+// is searched there, which shows at which rows paths reach the right side. full resolution reverse searches are run
+// from a band of rows around each of those, forward searches from the rows their paths land next to, and any new
+// right end a forward search reaches gets its reverse search too, until no new seeds turn up.
+// a stable seed is missed if its right end is neither within bandRadius of a coarse right end nor reached by any of
+// the forward searches, e.g. a faint line that max pooling merges into a neighbor's path on the coarse image
+public class PyramidPathSearch
+{
+	//the full resolution search, so the caller's choice of cost storage is kept
+	public interface Search
+	{
+		int[] shortestPath(int x, int xEnd, int y, boolean leftToRight);
+	}
+
+	private final ByteBuffer mPixelBuffer;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mFactor;
+	private final int mBandRadius;
+
+	//bandRadius is how many full resolution rows around a coarse right end are searched backwards
+	public PyramidPathSearch(ByteBuffer pixels, int w, int h, int factor, int bandRadius)
+	{
+		mPixelBuffer = pixels;
+		mWidth = w;
+		mHeight = h;
+		mFactor = factor;
+		mBandRadius = bandRadius;
+	}
+
+	//max pooling over factor*factor blocks, so thin lines are kept
+	static byte[] downsample(byte[] pixels, int w, int h, int factor)
+	{
+		return downsample(ByteBuffer.wrap(pixels), w, h, factor);
+	}
+
+	static byte[] downsample(ByteBuffer pixels, int w, int h, int factor)
+	{
+		int cw = (w + factor - 1)/factor;
+		int ch = (h + factor - 1)/factor;
+		byte[] coarse = new byte[cw*ch];
+		for(int y=0; y<h; ++y)
+		{
+			int rowStart = y*w;
+			int coarseRow = (y/factor)*cw;
+			for(int x=0; x<w; ++x)
+			{
+				if(pixels.get(rowStart+x) != 0)
+					coarse[coarseRow + x/factor] = -1;
+			}
+		}
+		return coarse;
+	}
+
+	//stable paths starting on rows [rowMin, rowMax) in row order. a subset of the ones the per row search finds,
+	// usually all of them
+	public List<int[]> findStablePaths(Search search, int xStart, int xEnd, int rowMin, int rowMax, PipelineMetrics metrics)
+	{
+		Map<Integer, int[]> reversePaths = new HashMap<Integer, int[]>();
+		boolean[] seeded = new boolean[mHeight];
+		List<Integer> pending = new ArrayList<Integer>();
+		int searches = 0;
+
+		//reverse searches from around every right end the coarse search reaches
+		for(int coarseEnd : findCoarseRightEnds(xStart, xEnd, metrics))
+		{
+			int top = Math.max(0, coarseEnd*mFactor - mBandRadius);
+			int bottom = Math.min(mHeight-1, coarseEnd*mFactor + mFactor-1 + mBandRadius);
+			for(int endY=top; endY<=bottom; ++endY)
+			{
+				if(!reversePaths.containsKey(endY))
+				{
+					reversePaths.put(endY, search.shortestPath(xEnd, xStart, endY, false));
+					++searches;
+					addSeeds(reversePaths.get(endY)[xStart+1], rowMin, rowMax, seeded, pending);
+				}
+			}
+		}
+
+		//forward searches from the candidate seeds, a right end not seen before adds its own candidates
+		TreeMap<Integer, int[]> stable = new TreeMap<Integer, int[]>();
+		int reuses = 0;
+		while(!pending.isEmpty())
+		{
+			int row = pending.remove(pending.size()-1);
+			int[] leftToRightPath = search.shortestPath(xStart, xEnd, row, true);
+			++searches;
+
+			int endY = leftToRightPath[xEnd-1];
+			int[] rightToLeftPath = reversePaths.get(endY);
+			if(rightToLeftPath == null)
+			{
+				rightToLeftPath = search.shortestPath(xEnd, xStart, endY, false);
+				++searches;
+				reversePaths.put(endY, rightToLeftPath);
+				addSeeds(rightToLeftPath[xStart+1], rowMin, rowMax, seeded, pending);
+			}
+			else
+				++reuses;
+
+			if(rightToLeftPath[xStart+1] == leftToRightPath[xStart+1] && rightToLeftPath[xEnd-1] == leftToRightPath[xEnd-1])
+				stable.put(row, leftToRightPath);
+		}
+
+		if(metrics != null)
+		{
+			metrics.addCount(PipelineMetrics.SHORTEST_PATH_CALLS, searches);
+			metrics.addCount(PipelineMetrics.REVERSE_SEARCH_REUSES, reuses);
+			metrics.addCount(PipelineMetrics.STABLE_PATHS, stable.size());
+		}
+		return new ArrayList<int[]>(stable.values());
+	}
+
+	//a forward path can only move one row before xStart+1, so only these rows can meet a reverse path landing at y
+	private static void addSeeds(int y, int rowMin, int rowMax, boolean[] seeded, List<Integer> pending)
+	{
+		for(int row=Math.max(rowMin, y-1); row<=Math.min(rowMax-1, y+1); ++row)
+		{
+			if(!seeded[row])
+			{
+				seeded[row] = true;
+				pending.add(row);
+			}
+		}
+	}
+
+	//the distinct coarse rows that forward searches from every coarse row end on
+	private List<Integer> findCoarseRightEnds(int xStart, int xEnd, PipelineMetrics metrics)
+	{
+		final int cw = (mWidth + mFactor - 1)/mFactor;
+		final int ch = (mHeight + mFactor - 1)/mFactor;
+		final int cxStart = xStart/mFactor;
+		final int cxEnd = Math.max(cxStart+1, Math.min(cw-1, xEnd/mFactor));
+
+		RollingPathSearch search = new RollingPathSearch(ByteBuffer.wrap(downsample(mPixelBuffer, mWidth, mHeight, mFactor)), cw, ch);
+		boolean[] isEnd = new boolean[ch];
+		for(int row=0; row<ch; ++row)
+		{
+			int[] path = search.shortestPath(cxStart, cxEnd, row, true);
+			isEnd[path[cxEnd-1]] = true;
+		}
+		if(metrics != null)
+			metrics.addCount(PipelineMetrics.COARSE_PATH_CALLS, ch);
+
+		List<Integer> ends = new ArrayList<Integer>();
+		for(int row=0; row<ch; ++row)
+		{
+			if(isEnd[row])
+				ends.add(row);
+		}
+		return ends;
+	}
+}
@@ -0,0 +1,236 @@
+package com.metze.scanner.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//caches finished analyses by ContentKey so the same image with the same parameters is only analyzed once.
+// a small LRU in memory sits in front of an optional directory of result files (StaffResultWriter format);
+// both are bounded by size in bytes.
+// the disk tier is best effort, a file that can't be read or written is treated as a miss.
+// only the memory tier is under the cache's lock, files are read, written and trimmed outside it, so threads sharing
+// a cache (BatchProcessor's workers) don't wait on each other's disk I/O
+public class ResultCache
+{
+	private static final String TAG = "ResultCache";
+	private static final String SUFFIX = ".msr";
+
+	private final LinkedHashMap<String, AnalysisResult> mMemory;
+	private final long mMaxMemoryBytes;
+	private long mMemoryBytes;
+
+	private final File mDirectory;		//null for a memory only cache
+	private final long mMaxDiskBytes;
+	private final Object mDiskLock;
+	private long mDiskBytes;		//size of the directory as of the last trim plus what was written since, -1 before the first
+	private boolean mTrimming;
+
+	private int mHits;
+	private int mMisses;
+
+	public ResultCache(long maxMemoryBytes)
+	{
+		this(maxMemoryBytes, null, 0);
+	}
+
+	public ResultCache(long maxMemoryBytes, File directory, long maxDiskBytes)
+	{
+		mMemory = new LinkedHashMap<String, AnalysisResult>(16, 0.75f, true);
+		mMaxMemoryBytes = maxMemoryBytes;
+		mMemoryBytes = 0;
+		mDirectory = directory;
+		mMaxDiskBytes = maxDiskBytes;
+		mDiskLock = new Object();
+		mDiskBytes = -1;
+		mTrimming = false;
+		mHits = 0;
+		mMisses = 0;
+
+		if(mDirectory != null && !mDirectory.isDirectory() && !mDirectory.mkdirs())
+			Log.i(TAG, "can't create cache directory "+mDirectory);
+	}
+
+	//the key for an ARGB image, hashed together with the preprocessing used and the analyzer's parameters
+	public static String keyFor(int[] argb, int w, int h, String parameters)
+	{
+		return new ContentKey().addInt(w).addInt(h).addString(parameters).addPixels(argb, 0, w*h).finish();
+	}
+
+	public AnalysisResult get(String key)
+	{
+		AnalysisResult result;
+		synchronized(this)
+		{
+			result = mMemory.get(key);
+		}
+		if(result == null && mDirectory != null)
+		{
+			result = readFile(key);
+			if(result != null)
+			{
+				synchronized(this)
+				{
+					putInMemory(key, result);
+				}
+			}
+		}
+
+		synchronized(this)
+		{
+			if(result != null)
+				++mHits;
+			else
+				++mMisses;
+		}
+		return result;
+	}
+
+	public void put(String key, AnalysisResult result)
+	{
+		synchronized(this)
+		{
+			putInMemory(key, result);
+		}
+		if(mDirectory != null)
+			writeFile(key, result);
+	}
+
+	public synchronized int getHits()
+	{
+		return mHits;
+	}
+
+	public synchronized int getMisses()
+	{
+		return mMisses;
+	}
+
+	private void putInMemory(String key, AnalysisResult result)
+	{
+		AnalysisResult old = mMemory.put(key, result);
+		if(old != null)
+			mMemoryBytes -= old.getSizeInBytes();
+		mMemoryBytes += result.getSizeInBytes();
+
+		//evict least recently used, but always keep the entry just added
+		Iterator<Map.Entry<String, AnalysisResult>> it = mMemory.entrySet().iterator();
+		while(mMemoryBytes > mMaxMemoryBytes && mMemory.size() > 1)
+		{
+			Map.Entry<String, AnalysisResult> eldest = it.next();
+			mMemoryBytes -= eldest.getValue().getSizeInBytes();
+			it.remove();
+		}
+	}
+
+	private AnalysisResult readFile(String key)
+	{
+		File file = new File(mDirectory, key + SUFFIX);
+		if(!file.isFile())
+			return null;
+
+		try
+		{
+			AnalysisResult result = MappedStaffResult.open(file).toAnalysisResult();
+			file.setLastModified(System.currentTimeMillis());	//lets the disk eviction approximate LRU
+			return result;
+		}
+		catch(IOException e)
+		{
+			Log.i(TAG, "dropping unreadable cache entry "+file+": "+e.getMessage());
+			file.delete();
+			return null;
+		}
+		catch(RuntimeException e)
+		{
+			//a corrupt path, or a file truncated while it was mapped
+			Log.i(TAG, "dropping corrupt cache entry "+file+": "+e);
+			file.delete();
+			return null;
+		}
+	}
+
+	private void writeFile(String key, AnalysisResult result)
+	{
+		//write to a temp file and rename, so a reader never sees half an entry. the temp name is per thread, two threads
+		// can put the same key at once
+		File tmp = new File(mDirectory, key + SUFFIX + "." + Thread.currentThread().getId() + ".tmp");
+		File file = new File(mDirectory, key + SUFFIX);
+		try
+		{
+			StaffResultWriter.write(result, tmp);
+			if(!tmp.renameTo(file))
+			{
+				file.delete();
+				if(!tmp.renameTo(file))
+					throw new IOException("rename failed");
+			}
+		}
+		catch(IOException e)
+		{
+			Log.i(TAG, "can't write cache entry "+file+": "+e.getMessage());
+			tmp.delete();
+			return;
+		}
+
+		//the directory is only listed when the running total says it may be over, and by one thread at a time
+		synchronized(mDiskLock)
+		{
+			if(mDiskBytes >= 0)
+				mDiskBytes += file.length();
+			if(mTrimming || (mDiskBytes >= 0 && mDiskBytes <= mMaxDiskBytes))
+				return;
+			mTrimming = true;
+		}
+		long total = -1;
+		try
+		{
+			total = trimDirectory();
+		}
+		finally
+		{
+			synchronized(mDiskLock)
+			{
+				mDiskBytes = total;
+				mTrimming = false;
+			}
+		}
+	}
+
+	//deletes the oldest result files until the directory fits in mMaxDiskBytes and returns its size, -1 if it can't be listed
+	private long trimDirectory()
+	{
+		File[] files = mDirectory.listFiles();
+		if(files == null)
+			return -1;
+
+		long total = 0;
+		for(File f : files)
+			total += f.length();
+		if(total <= mMaxDiskBytes)
+			return total;
+
+		Arrays.sort(files, new Comparator<File>()
+		{
+			@Override
+			public int compare(File a, File b)
+			{
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+
+		for(int i=0; i<files.length-1 && total > mMaxDiskBytes; ++i)
+		{
+			if(!files[i].getName().endsWith(SUFFIX))
+				continue;
+			long length = files[i].length();
+			if(files[i].delete())
+				total -= length;
+		}
+		return total;
+	}
+}
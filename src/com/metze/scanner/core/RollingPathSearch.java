@@ -0,0 +1,130 @@
+package com.metze.scanner.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//low memory version of StaffAnalyzer.shortestPath, with float costs in two columns (ColumnPathSearch).
+// scratch memory is 2*h floats instead of w*h floats, and the paths are identical.
+// for a window of a taller page (StaffAnalyzer.setSearchWindow) it also tells whether the walk is the one the page would
+// give, see setOpenEdges
+public class RollingPathSearch extends ColumnPathSearch
+{
+	private static final float UNREACHED = Float.MAX_VALUE-5.f;
+	private static final float DIAGONAL_EXTRA = 0.414f;		//a diagonal step's cost over a straight one
+
+	private float[] mPrevCost;
+	private float[] mCurCost;
+
+	private boolean mTopOpen;
+	private boolean mBottomOpen;
+	private boolean mCutOff;
+	private float mTopExit;		//the lowest edge row cost in an earlier column, less the columns it is from the start
+	private float mBottomExit;
+
+	public RollingPathSearch(ByteBuffer pixels, int w, int h)
+	{
+		super(pixels, w, h);
+
+		mPrevCost = new float[h];
+		mCurCost = new float[h];
+
+		mTopOpen = false;
+		mBottomOpen = false;
+		mCutOff = false;
+		mTopExit = UNREACHED;
+		mBottomExit = UNREACHED;
+	}
+
+	//the image is a window of a page that goes on past its top and/or bottom row. a route through the rows past an
+	// open edge leaves from an edge row, costs at least a straight step per column there (foreground is free) and needs
+	// a diagonal step for every row it goes out and back in. so every cell's cost has a lower bound for any route
+	// through the missing rows, from the costs of the edge row so far. when a cell the walk compares might be cheaper
+	// on the page than the walk's next cell is here, the page's walk could go another way, and isCutOff is set
+	public void setOpenEdges(boolean top, boolean bottom)
+	{
+		mTopOpen = top;
+		mBottomOpen = bottom;
+	}
+
+	//true if the last search's walk may differ from the one on the whole page, always false without open edges
+	public boolean isCutOff()
+	{
+		return mCutOff;
+	}
+
+	@Override
+	protected void startSearch(int y)
+	{
+		//nothing outside the searched cone is ever written, so it only has to be reset once per search
+		Arrays.fill(mPrevCost, UNREACHED);
+		Arrays.fill(mCurCost, UNREACHED);
+		mPrevCost[y] = 0.0f;
+		mCutOff = false;
+		mTopExit = (mTopOpen && y == 0) ? 0.0f : UNREACHED;
+		mBottomExit = (mBottomOpen && y == mHeight-1) ? 0.0f : UNREACHED;
+	}
+
+	@Override
+	protected void fillColumn(int x, int yIndexMin, int yIndexMax)
+	{
+		final float k = 5.f;
+		for(int yi=yIndexMin; yi<=yIndexMax; ++yi)
+		{
+			float pixelWeight = k*(mPixelBuffer.get(yi*mWidth+x) + 1.f);	//bigger k value = less likely to choose background pixel
+
+			float cost = UNREACHED;
+			float costFromPrev = 1.0f + mPrevCost[yi] + pixelWeight;
+			if(costFromPrev < cost)
+				cost = costFromPrev;
+
+			if(yi > 0)
+			{
+				float costFromPrevUp = 1.414f + mPrevCost[yi-1] + pixelWeight;
+				if(costFromPrevUp < cost)
+					cost = costFromPrevUp;
+			}
+			if(yi < mHeight-1)
+			{
+				float costFromPrevDown = 1.414f + mPrevCost[yi+1] + pixelWeight;
+				if(costFromPrevDown < cost)
+					cost = costFromPrevDown;
+			}
+
+			mCurCost[yi] = cost;
+		}
+	}
+
+	@Override
+	protected int step(int y, int xDiff, boolean last)
+	{
+		float bestCost = mCurCost[y];
+		int bestY = y;
+		if(y > 0 && mCurCost[y-1] < bestCost)
+		{
+			bestCost = mCurCost[y-1];
+			bestY = y-1;
+		}
+		if(y < mHeight-1 && mCurCost[y+1] < bestCost)
+		{
+			bestCost = mCurCost[y+1];
+			bestY = y+1;
+		}
+		if(!last && (mTopExit < UNREACHED || mBottomExit < UNREACHED))
+		{
+			//the compared rows are y-1 to y+1, and the row nearest an edge has the lowest bound. the margin
+			// covers the float sums drifting apart
+			float reach = bestCost + 1.f + bestCost/1024.f - xDiff;
+			if(mTopExit + DIAGONAL_EXTRA*(y+1) <= reach || mBottomExit + DIAGONAL_EXTRA*(mHeight-y) <= reach)
+				mCutOff = true;
+		}
+		if(mTopOpen && mCurCost[0] < UNREACHED)
+			mTopExit = Math.min(mTopExit, mCurCost[0] - xDiff);
+		if(mBottomOpen && mCurCost[mHeight-1] < UNREACHED)
+			mBottomExit = Math.min(mBottomExit, mCurCost[mHeight-1] - xDiff);
+
+		float[] tmp = mPrevCost;
+		mPrevCost = mCurCost;
+		mCurCost = tmp;
+		return bestY;
+	}
+}
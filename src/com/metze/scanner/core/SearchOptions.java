@@ -0,0 +1,125 @@
+package com.metze.scanner.core;
+
+//the StaffAnalyzer settings that change which stable paths are found, and so what processImage produces.
+// callers that cache results build one, take the key from getKey and hand the same options to
+// StaffAnalyzer.setSearchOptions, so the key always describes the search that ran. the setters are those of
+// StaffAnalyzer and return this for chaining. packed, low memory and parallel search give identical results and
+// are not part of it
+public class SearchOptions
+{
+	private boolean mBatched;
+	private boolean mHistogramSeeding;
+	private int mSeedSampleSpacing;
+	private boolean mConvergenceStop;
+	private boolean mBanded;
+	private boolean mFixedPoint;
+	private int mPyramidFactor;
+
+	public SearchOptions()
+	{
+		mBatched = false;
+		mHistogramSeeding = false;
+		mSeedSampleSpacing = 0;
+		mConvergenceStop = false;
+		mBanded = false;
+		mFixedPoint = false;
+		mPyramidFactor = 1;
+	}
+
+	public SearchOptions setBatchedSearch(boolean batched)
+	{
+		mBatched = batched;
+		return this;
+	}
+
+	public SearchOptions setHistogramSeeding(boolean seeded, int sampleSpacing)
+	{
+		mHistogramSeeding = seeded;
+		mSeedSampleSpacing = Math.max(0, sampleSpacing);
+		return this;
+	}
+
+	public SearchOptions setConvergenceStop(boolean stop)
+	{
+		mConvergenceStop = stop;
+		return this;
+	}
+
+	public SearchOptions setBandedSearch(boolean banded)
+	{
+		mBanded = banded;
+		return this;
+	}
+
+	public SearchOptions setFixedPointCosts(boolean fixedPoint)
+	{
+		mFixedPoint = fixedPoint;
+		return this;
+	}
+
+	public SearchOptions setPyramidSearch(int factor)
+	{
+		mPyramidFactor = Math.max(1, factor);
+		return this;
+	}
+
+	public boolean isBatchedSearch()
+	{
+		return mBatched;
+	}
+
+	public boolean isHistogramSeeding()
+	{
+		return mHistogramSeeding;
+	}
+
+	public int getSeedSampleSpacing()
+	{
+		return mSeedSampleSpacing;
+	}
+
+	public boolean isConvergenceStop()
+	{
+		return mConvergenceStop;
+	}
+
+	public boolean isBandedSearch()
+	{
+		return mBanded;
+	}
+
+	public boolean isFixedPointCosts()
+	{
+		return mFixedPoint;
+	}
+
+	public int getPyramidFactor()
+	{
+		return mPyramidFactor;
+	}
+
+	//the options as a string for cache keys. the batched search finds the per row search's paths and only depends on
+	// the seeding, so it shares the per row key for its seeding. the pyramid search ignores seeding and convergence
+	// stop, so those are left out of its key
+	public String getKey()
+	{
+		String key;
+		if(mPyramidFactor > 1 && !mBatched)
+			key = "search=pyramid/" + mPyramidFactor;
+		else
+		{
+			key = "search=rows";
+			if(mHistogramSeeding)
+				key += ";seeding=histogram/" + mSeedSampleSpacing;
+			if(mBatched)
+				return key;
+			if(mConvergenceStop)
+				key += ";convergenceStop";
+		}
+		if(mBanded)
+			key += ";banded";
+		if(mFixedPoint)
+			key += ";fixedPoint";
+		return key;
+	}
+}
@@ -0,0 +1,174 @@
+package com.metze.scanner.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//finds how far the staff lines of a binary image are tilted and rotates the image to straighten them.
+// staff lines are long and parallel, so the horizontal projection along their angle has a few very tall bins and is
+// flat everywhere else. the estimate is the angle whose projection has the largest sum of squared bins, which is the
+// highest variance since the total is the same for every angle. it is searched on a shrunk copy of the image in
+// coarse steps first and then in finer steps around the best one.
+// a tilted page makes every shortest path search drift and widens its cone, so straightening first helps every later stage
+public class SkewEstimator
+{
+	protected static final String TAG = "SkewEstimator";
+
+	public static final double MAX_ANGLE = Math.toRadians(10);
+	//tilts below this are left alone, they move a line less than a row across a typical page
+	public static final double MIN_CORRECTION = Math.toRadians(0.1);
+
+	//width the image is shrunk to for the search
+	private static final int SEARCH_WIDTH = 512;
+	//step of each pass in degrees, each pass searches +-2 steps of the one before around its best angle
+	private static final double[] STEPS = { 0.5, 0.1, 0.02 };
+
+	//the tilt in radians, positive when lines go down to the right (y grows with x), within +-MAX_ANGLE
+	public static double estimateAngle(byte[] pixels, int w, int h)
+	{
+		return estimateAngle(ByteBuffer.wrap(pixels), w, h);
+	}
+
+	public static double estimateAngle(ByteBuffer pixels, int w, int h)
+	{
+		int factor = Math.max(1, (w + SEARCH_WIDTH - 1)/SEARCH_WIDTH);
+		ByteBuffer small = (factor > 1) ? ByteBuffer.wrap(PyramidPathSearch.downsample(pixels, w, h, factor)) : pixels;
+		int sw = (w + factor - 1)/factor;
+		int sh = (h + factor - 1)/factor;
+
+		//the projection only needs the foreground points, taken once
+		int count = 0;
+		for(int i=0; i<sw*sh; ++i)
+		{
+			if(small.get(i) != 0)
+				++count;
+		}
+		if(count == 0)
+			return 0;
+		int[] xs = new int[count];
+		int[] ys = new int[count];
+		int n = 0;
+		for(int y=0; y<sh; ++y)
+		{
+			for(int x=0; x<sw; ++x)
+			{
+				if(small.get(y*sw+x) != 0)
+				{
+					xs[n] = x;
+					ys[n] = y;
+					++n;
+				}
+			}
+		}
+
+		//bins cover every row a point can shear to within MAX_ANGLE
+		int margin = (int)Math.ceil(sw*Math.tan(MAX_ANGLE)) + 1;
+		long[] bins = new long[sh + 2*margin];
+
+		double maxDegrees = Math.toDegrees(MAX_ANGLE);
+		double best = 0;
+		double low = -maxDegrees;
+		double high = maxDegrees;
+		for(double step : STEPS)
+		{
+			long bestScore = -1;
+			for(double degrees=low; degrees<=high+1e-9; degrees+=step)
+			{
+				long score = projectionScore(xs, ys, n, Math.tan(Math.toRadians(degrees)), margin, bins);
+				if(score > bestScore)
+				{
+					bestScore = score;
+					best = degrees;
+				}
+			}
+			low = Math.max(-maxDegrees, best - 2*step);
+			high = Math.min(maxDegrees, best + 2*step);
+		}
+
+		return Math.toRadians(best);
+	}
+
+	//sum of squared bins of the projection along lines y = y0 + x*slope
+	private static long projectionScore(int[] xs, int[] ys, int n, double slope, int margin, long[] bins)
+	{
+		Arrays.fill(bins, 0);
+		for(int i=0; i<n; ++i)
+		{
+			int bin = (int)Math.round(ys[i] - xs[i]*slope) + margin;
+			bins[bin]++;
+		}
+
+		long score = 0;
+		for(long bin : bins)
+			score += bin*bin;
+		return score;
+	}
+
+	//rotates a binary image by -angle about its center, so lines at angle come out horizontal. nearest neighbor,
+	// so it stays binary, and the corners that come from outside the image are background.
+	// out must hold w*h bytes and can't be pixels
+	public static void rotate(byte[] pixels, int w, int h, double angle, byte[] out)
+	{
+		rotate(ByteBuffer.wrap(pixels), w, h, angle, ByteBuffer.wrap(out));
+	}
+
+	public static void rotate(ByteBuffer pixels, int w, int h, double angle, ByteBuffer out)
+	{
+		double cos = Math.cos(angle);
+		double sin = Math.sin(angle);
+		double cx = (w-1)/2.0;
+		double cy = (h-1)/2.0;
+
+		for(int y=0; y<h; ++y)
+		{
+			double dy = y - cy;
+			//source position of x=0 in this row, it moves by (cos, sin) per column
+			double sx = cx - cx*cos - dy*sin;
+			double sy = cy - cx*sin + dy*cos;
+			int row = y*w;
+			for(int x=0; x<w; ++x)
+			{
+				int xi = (int)Math.floor(sx + 0.5);
+				int yi = (int)Math.floor(sy + 0.5);
+				out.put(row+x, (xi >= 0 && xi < w && yi >= 0 && yi < h) ? pixels.get(yi*w+xi) : 0);
+				sx += cos;
+				sy += sin;
+			}
+		}
+	}
+
+	//estimates the tilt and straightens pixels in place if it is worth it. returns the angle that was corrected, or 0
+	public static double deskew(byte[] pixels, int w, int h)
+	{
+		return deskew(pixels, w, h, estimateAngle(pixels, w, h));
+	}
+
+	//straightens pixels in place by a known tilt, e.g. one the user set
+	public static double deskew(byte[] pixels, int w, int h, double angle)
+	{
+		if(Math.abs(angle) < MIN_CORRECTION)
+			return 0;
+
+		byte[] rotated = new byte[w*h];
+		rotate(pixels, w, h, angle, rotated);
+		System.arraycopy(rotated, 0, pixels, 0, w*h);
+		Log.i(TAG, "deskewed by "+Math.toDegrees(angle)+" degrees");
+		return angle;
+	}
+
+	//deskew for an image in a buffer, rotating through scratch (w*h bytes, not overlapping pixels) instead of a new array
+	public static double deskew(ByteBuffer pixels, int w, int h, double angle, ByteBuffer scratch)
+	{
+		if(Math.abs(angle) < MIN_CORRECTION)
+			return 0;
+
+		rotate(pixels, w, h, angle, scratch);
+		ByteBuffer src = scratch.duplicate();
+		src.clear();
+		src.limit(w*h);
+		ByteBuffer dst = pixels.duplicate();
+		dst.clear();
+		dst.put(src);
+		Log.i(TAG, "deskewed by "+Math.toDegrees(angle)+" degrees");
+		return angle;
+	}
+}
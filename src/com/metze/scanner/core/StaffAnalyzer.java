@@ -0,0 +1,932 @@
+package com.metze.scanner.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+//staff line detection and removal on a binary image, with no android dependencies.
+// foreground/staff line pixels are -1 and background pixels are 0.
+// the image is read and written in place through a ByteBuffer, so it can be a plain array or a direct buffer shared with
+// the stage that produced it, without a copy in between
+public class StaffAnalyzer {
+	protected static final String TAG = "StaffAnalyzer";
+	//how many columns a forward search has to run along an earlier path before it is taken to have merged into it
+	static final int MERGE_COLUMNS = 8;
+	//a banded path has to run on foreground for at least this fraction of its columns to count as a staff line
+	static final float MIN_BANDED_FOREGROUND = 0.7f;
+	
+    private StaffLineStats mLineStats;
+    private ByteBuffer mPixelBuffer;	//absolute get/put only, index y*w+x is pixel (x, y)
+    private PackedBinaryImage mPackedImage;
+    private boolean mUsePackedImage;
+    private int mWidth;
+    private int mHeight;
+    private int[] mHorizontalProjHist;
+    
+    private List<int[]> mStablePaths;
+    private int mStablePathsFound;	//stable paths before addDistinctPaths dropped duplicates, what removeStaffLines goes by
+    private int pathLeftBound;
+    private int pathRightBound;
+    private boolean mBatchedSearch;
+    private boolean mLowMemorySearch;
+    private SearchWorkspace mWorkspace;
+    private ExecutorService mSearchExecutor;
+    private int mSearchPartitions;
+    private PipelineMetrics mMetrics;
+    private int mPyramidFactor;
+    private boolean mHistogramSeeding;
+    private int mSeedSampleSpacing;
+    private boolean mConvergenceStop;
+    private boolean mBandedSearch;
+    private int mBandRadius;	//0 while the search is unbanded
+    private boolean mFixedPointCosts;
+    private int[] mWindowSeeds;		//set by setSearchWindow, null for a whole page
+    private boolean mTopOpen;		//the window's page goes on past its top row
+    private boolean mBottomOpen;
+    private List<Integer> mClippedSeeds;
+    
+
+    
+    public StaffAnalyzer(byte[] pixels, int w, int h)
+    {
+    	this(ByteBuffer.wrap(pixels), w, h);
+    }
+    
+    //works on the first w*h bytes of image, which is not copied
+    public StaffAnalyzer(ByteBuffer image, int w, int h)
+    {
+    	mPixelBuffer = image;
+    	mHeight = h;
+    	mWidth = w;
+    	
+        mHorizontalProjHist = new int[mHeight];
+        mLineStats = new StaffLineStats(mHorizontalProjHist, mWidth);
+    	mStablePaths = new ArrayList<int[]>();
+    	mStablePathsFound = 0;
+
+    	mPackedImage = null;
+    	mUsePackedImage = false;
+    	mBatchedSearch = false;
+    	mLowMemorySearch = false;
+    	mWorkspace = null;	//only allocated if the per row search runs
+    	mSearchExecutor = null;
+    	mSearchPartitions = 1;
+    	mMetrics = new PipelineMetrics();
+    	mPyramidFactor = 1;
+    	mHistogramSeeding = false;
+    	mSeedSampleSpacing = 0;
+    	mConvergenceStop = false;
+    	mBandedSearch = false;
+    	mBandRadius = 0;
+    	mFixedPointCosts = false;
+    	mWindowSeeds = null;
+    	mTopOpen = false;
+    	mBottomOpen = false;
+    	mClippedSeeds = new ArrayList<Integer>();
+    	pathLeftBound = w/8;
+    	pathRightBound = w - pathLeftBound;
+    }
+	
+    public int getStaffLineSize()
+    {
+    	return mLineStats.getStaffLineSize();
+    }
+    
+    public int getStaffSpaceSize()
+    {
+    	return mLineStats.getStaffSpaceSize();
+    }
+    
+    public int getTotalStaffLines()
+    {
+    	return mLineStats.getTotalStaffLines();
+    }
+    
+    public int getNumStaffs()
+    {
+    	return mLineStats.getNumStaffs();
+    }
+    
+    public int getWidth()
+    {
+    	return mWidth;
+    }
+    
+    public int getHeight()
+    {
+    	return mHeight;
+    }
+    
+    //the array the image lives in, or null if it is in a direct buffer. getImage works for both
+    public byte[] getPixels()
+    {
+    	if(mPixelBuffer.hasArray() && mPixelBuffer.arrayOffset() == 0)
+    		return mPixelBuffer.array();
+    	return null;
+    }
+    
+    public ByteBuffer getImage()
+    {
+    	return mPixelBuffer;
+    }
+    
+    public byte getPixel(int x, int y)
+    {
+    	return mPixelBuffer.get(y*mWidth+x);
+    }
+    
+    //copies the w*h pixels into dst, for results that have to outlive the buffer
+    public byte[] copyPixels(byte[] dst)
+    {
+    	if(dst == null || dst.length < mWidth*mHeight)
+    		dst = new byte[mWidth*mHeight];
+    	ByteBuffer src = mPixelBuffer.duplicate();
+    	src.clear();
+    	src.get(dst, 0, mWidth*mHeight);
+    	return dst;
+    }
+    
+    //the bit packed copy of the image, or null if packed mode is off or processImage hasn't run
+    public PackedBinaryImage getPackedImage()
+    {
+    	return mPackedImage;
+    }
+    
+    public int[] getHorizontalProjHist()
+    {
+    	return mHorizontalProjHist;
+    }
+    
+    public List<int[]> getStablePaths()
+    {
+    	return mStablePaths;
+    }
+    
+    //how many stable paths the search found, duplicates included. the 5 line minimum of removeStaffLines counts these,
+    // so dropping duplicates doesn't change which pages get cleaned
+    int getStablePathsFound()
+    {
+    	return mStablePathsFound;
+    }
+    
+    public int getPathLeftBound()
+    {
+    	return pathLeftBound;
+    }
+    
+    public int getPathRightBound()
+    {
+    	return pathRightBound;
+    }
+    
+    //when enabled, a bit packed copy of the image (PackedBinaryImage, w*h/8 more bytes) is kept next to the byte buffer,
+    // so the projection histogram is a popcount per word and removeStaffLines builds its run index over 1/8 of the
+    // memory. only those two read it: the path searches, the renderers and getPixels all use the byte buffer, which
+    // stays the image, and removeStaffLines clears both
+    public void setPackedImage(boolean packed)
+    {
+    	mUsePackedImage = packed;
+    }
+    
+    //hands over an already packed copy of the pixels (for example straight from the binarizer) and turns packed mode on
+    public void setPackedImage(PackedBinaryImage image)
+    {
+    	mPackedImage = image;
+    	mUsePackedImage = true;
+    }
+    
+    //when enabled, the seed rows are searched BatchedPathSearch.LANES at a time in one sweep over the columns per direction
+    // (BatchedPathSearch) instead of a shortestPath per row. the stable paths are the per row search's, but it runs on the
+    // calling thread with float costs and never merges paths, so setParallelSearch, setConvergenceStop, setFixedPointCosts
+    // and setBandedSearch's band don't apply to it. it takes precedence over setPyramidSearch
+    public void setBatchedSearch(boolean batched)
+    {
+    	mBatchedSearch = batched;
+    }
+    
+    //when enabled, the per row search keeps two cost columns (RollingPathSearch) instead of a w*h float cost buffer.
+    // the paths found are the same
+    public void setLowMemorySearch(boolean lowMemory)
+    {
+    	mLowMemorySearch = lowMemory;
+    }
+    
+    //when an executor is set, the seed rows of the per row search are split into contiguous blocks that run as
+    // separate tasks, each with its own cost workspace. results are merged in row order, so they match the sequential search.
+    // with setConvergenceStop, the first seeds of each block are searched again on the calling thread against the end of
+    // the block before it until they agree, which keeps that true. each worker holds its own cost storage, so combine
+    // with setLowMemorySearch on large images
+    public void setParallelSearch(ExecutorService executor, int partitions)
+    {
+    	mSearchExecutor = executor;
+    	mSearchPartitions = Math.max(1, partitions);
+    }
+    
+    //when factor is 2 or more, the per row search first runs on an image shrunk by that factor to find where paths end,
+    // and full resolution searches only start from rows that can turn out stable (PyramidPathSearch). this is approximate,
+    // a stable path the coarse pass gives no hint of is missed, so it has its own cache key. it runs on the calling
+    // thread and picks its own seeds, so setParallelSearch, setHistogramSeeding and setConvergenceStop don't apply to
+    // it (findStablePaths logs a warning if they are set), and setBatchedSearch takes precedence over it. on an image
+    // no wider than factor the per row search runs instead. 1 turns it off
+    public void setPyramidSearch(int factor)
+    {
+    	mPyramidFactor = Math.max(1, factor);
+    }
+    
+    //when enabled, the per row search only starts from rows near the staff lines findStaffLinePositions labeled and
+    // near peaks of the projection histogram (StaffLineStats.getCandidateSeedRows), plus every sampleSpacing-th row
+    // in between if sampleSpacing > 0. the paths found are a subset of the full search's, lines too faint or skewed
+    // to show in the histogram can be missed unless the sampled rows catch them
+    public void setHistogramSeeding(boolean seeded, int sampleSpacing)
+    {
+    	mHistogramSeeding = seeded;
+    	mSeedSampleSpacing = Math.max(0, sampleSpacing);
+    }
+    
+    //when enabled, each forward search of the per row search stops once it has run along the previous seed row's path
+    // for MERGE_COLUMNS columns and takes the rest of that path. neighboring rows nearly always end up on the same line,
+    // so most searches stop early, but a path that would have split off again later is cut short
+    public void setConvergenceStop(boolean stop)
+    {
+    	mConvergenceStop = stop;
+    }
+    
+    //when enabled, every path of the per row and pyramid search stays within a band of rows around the row it starts on
+    // (BandedPathSearch), one staff space plus two line thicknesses either way. that covers the drift of a scanned or
+    // photographed line, and searches no longer grow to the full image height. paths that would have left the band
+    // are cut off, so results can differ. without a measured staff spacing the search is unbanded
+    public void setBandedSearch(boolean banded)
+    {
+    	mBandedSearch = banded;
+    }
+    
+    //when enabled, the per row and pyramid search use integer costs (FixedPointPathSearch), in two cost columns per
+    // worker like setLowMemorySearch. the sums are exact instead of rounded, so paths that tie in one cost model but
+    // not the other can come out differently, CostModelCheck compares the two. a banded search keeps float costs
+    public void setFixedPointCosts(boolean fixedPoint)
+    {
+    	mFixedPointCosts = fixedPoint;
+    }
+    
+    //for StripAnalyzer: the image is a window of a taller page, and only the given rows (increasing) seed the per row
+    // search. an open edge is one the page goes on past. the search runs on RollingPathSearch whatever the other
+    // settings, and a seed whose forward or reverse walk it reports as cut off by an open edge (the page's rows past it
+    // might have sent the walk another way) is left out of the stable paths and reported by getClippedSeeds, for a
+    // search in a taller window. the others come out as a search of the whole page would have them. call it before
+    // findStablePaths, the pyramid and batched searches ignore it
+    void setSearchWindow(int[] seeds, boolean topOpen, boolean bottomOpen)
+    {
+    	mWindowSeeds = seeds;
+    	mTopOpen = topOpen;
+    	mBottomOpen = bottomOpen;
+    }
+    
+    //seed rows of the last findStablePaths that setSearchWindow's open edges cut off, in increasing order
+    List<Integer> getClippedSeeds()
+    {
+    	return mClippedSeeds;
+    }
+    
+    //hands in a cost buffer from an earlier analysis, so repeated runs don't allocate w*h floats each. it is used if it
+    // holds at least w*h floats. getCostBuffer returns whatever buffer the sequential search ended up with, for the next run
+    public void setCostBuffer(float[] costBuffer)
+    {
+    	if(mWorkspace == null)
+    		mWorkspace = new SearchWorkspace();
+    	mWorkspace.costList = costBuffer;
+    }
+    
+    public float[] getCostBuffer()
+    {
+    	return (mWorkspace != null) ? mWorkspace.costList : null;
+    }
+    
+    //stage times and search counters are recorded here, pass a shared instance to collect a whole pipeline in one place
+    public void setMetrics(PipelineMetrics metrics)
+    {
+    	mMetrics = metrics;
+    }
+    
+    public PipelineMetrics getMetrics()
+    {
+    	return mMetrics;
+    }
+    
+    //applies all of options with the setters below
+    public void setSearchOptions(SearchOptions options)
+    {
+    	setBatchedSearch(options.isBatchedSearch());
+    	setHistogramSeeding(options.isHistogramSeeding(), options.getSeedSampleSpacing());
+    	setConvergenceStop(options.isConvergenceStop());
+    	setBandedSearch(options.isBandedSearch());
+    	setFixedPointCosts(options.isFixedPointCosts());
+    	setPyramidSearch(options.getPyramidFactor());
+    }
+    
+    //the current settings that change what processImage produces
+    public SearchOptions getSearchOptions()
+    {
+    	return new SearchOptions().setBatchedSearch(mBatchedSearch).setHistogramSeeding(mHistogramSeeding, mSeedSampleSpacing)
+    			.setConvergenceStop(mConvergenceStop).setBandedSearch(mBandedSearch).setFixedPointCosts(mFixedPointCosts)
+    			.setPyramidSearch(mPyramidFactor);
+    }
+    
+    //for building cache keys, same as getSearchOptions().getKey()
+    public String getParameterKey()
+    {
+    	return getSearchOptions().getKey();
+    }
+    
+    public void processImage()
+    {
+    	mMetrics.startStage("calcHorizontalProjHist");
+    	calcHorizontalProjHist();
+    	mMetrics.startStage("findStaffLinePositions");
+    	findStaffLinePositions();
+    	mMetrics.startStage("calcStaffSpacingAndThickness");
+    	calcStaffSpacingAndThickness();
+    	mMetrics.startStage("findStablePaths");
+    	findStablePaths();
+    	mMetrics.endStage();
+    }
+    
+    public boolean isStaffLineAt(int y)
+    {
+    	return mLineStats.isStaffLineAt(y);
+    }
+    
+    //the stages of processImage are package private so the benchmarks can time them one at a time
+    
+    //creates a histogram of the # of white pixels in each row of the image
+    void calcHorizontalProjHist()
+    {
+    	Log.i(TAG, "calcHorizontalProjHist");
+    	
+    	if(mUsePackedImage)
+    	{
+    		if(mPackedImage == null)
+    			mPackedImage = PackedBinaryImage.pack(mPixelBuffer, mWidth, mHeight);
+    		mPackedImage.horizontalProjection(mHorizontalProjHist);
+    		return;
+    	}
+
+      	int row, col, rowSum, pixelColor;
+      	for(row=0; row<mHeight; ++row)
+      	{
+      		rowSum = 0;
+      		for(col=0; col< mWidth; ++col)
+      		{
+      			pixelColor = (int)mPixelBuffer.get(row*mWidth+col);
+      			if(pixelColor != 0)
+      				rowSum++;
+      		}
+      		mHorizontalProjHist[row] = rowSum;
+      	}
+
+    }
+    
+    //finds the y position of the staff lines from the histogram
+    void findStaffLinePositions()
+    {
+    	mLineStats.findStaffLinePositions();
+    }
+    
+    //this method assumes white is foreground/staff lines with an int val of -1 and black an int val of 0.
+    // a column is final once the DP has filled it, so the path walk follows one column behind the DP. if mergeInto is
+    // given and the walk has run along it for MERGE_COLUMNS columns, the rest of mergeInto is taken as the rest of the path
+    // and the DP stops there. that is nearly always what the full search would have found, but not guaranteed
+    private int[] shortestPath(float[] costList, int x, int xEnd, int y, boolean leftToRight, int[] mergeInto)
+    {
+    	int xStart = x;
+    	int yStart = y;
+    	final float k = 5.f;
+    	
+    	int dir = 1;
+    	if(!leftToRight)
+    		dir = -1;
+    	
+    	costList[y*mWidth+x] = 0.0f;
+    	
+		int path[] = new int[mWidth];
+		path[x] = y;
+		int merged = 0;
+		while(x != xEnd)
+		{
+			x+=dir;
+
+			//only search update/search y positions as far as we've moved x
+			// this is because each move in x, we only allow the staff line to move up or down a maximum of 1 pixel
+			int xDiff = Math.abs(x - xStart);
+			int yIndexMin = Math.max(0, yStart-xDiff);
+			int yIndexMax = Math.min(mHeight-1, yStart+xDiff);
+
+			while(yIndexMin <= yIndexMax)
+			{
+				int curBufferIndex = yIndexMin*mWidth+x;
+				float pixelWeight = k*(mPixelBuffer.get(curBufferIndex) + 1.f);	//bigger k value = less likely to choose background pixel
+				
+				float costFromPrev = 1.0f + costList[yIndexMin*mWidth+(x-dir)] + pixelWeight;
+				if(costFromPrev < costList[curBufferIndex])
+					costList[curBufferIndex] = costFromPrev;
+
+				if(yIndexMin > 0)
+				{
+					float costFromPrevUp = 1.414f + costList[(yIndexMin-1)*mWidth+(x-dir)] + pixelWeight;
+					if(costFromPrevUp < costList[curBufferIndex])
+						 costList[curBufferIndex] = costFromPrevUp;
+				}
+				if(yIndexMin < mHeight-1)
+				{
+					float costFromPrevDown = 1.414f + costList[(yIndexMin+1)*mWidth+(x-dir)] + pixelWeight;
+					if(costFromPrevDown < costList[curBufferIndex])
+						 costList[curBufferIndex] = costFromPrevDown;
+				}
+
+				++yIndexMin;
+			}
+			
+			//step the path walk onto column x, to the lowest cost of its 3 neighbors there
+			float bestCost = costList[y*mWidth+x];
+			int bestY = y;
+			 
+			if(y > 0)
+			{
+				if(costList[(y-1)*mWidth+x] < bestCost)
+				{
+					bestCost = costList[(y-1)*mWidth+x];
+					bestY = y-1;
+				}
+			}
+			if(y < mHeight-1)
+			{
+				if(costList[(y+1)*mWidth+x] < bestCost)
+				{
+					bestCost = costList[(y+1)*mWidth+x];
+					bestY = y+1;
+				}
+			}
+			 
+			y = bestY;
+			if(x == xEnd)
+				break;
+			path[x] = y;
+			
+			if(mergeInto != null)
+			{
+				merged = (mergeInto[x] == y) ? merged+1 : 0;
+				if(merged >= MERGE_COLUMNS)
+				{
+					for(x+=dir; x!=xEnd; x+=dir)
+						path[x] = mergeInto[x];
+					break;
+				}
+			}
+		}
+
+		return path;
+    }
+    
+    void findStablePaths()
+    {
+    	mBandRadius = 0;
+    	if(mBandedSearch && getStaffSpaceSize() > 0 && !mBatchedSearch)
+    		mBandRadius = getStaffSpaceSize() + 2*getStaffLineSize();
+    	
+    	//below 8 columns the bounds are 0 and w, and a search would fill column w. the stability test also needs a
+    	// column between xStart+1 and xEnd-1 to compare
+    	if(pathRightBound >= mWidth || pathRightBound-pathLeftBound < 2)
+    	{
+    		Log.i(TAG, "image too narrow for the stable path search");
+    		return;
+    	}
+    	
+    	List<int[]> paths;
+    	if(mBatchedSearch)
+    	{
+    		if(mConvergenceStop || mSearchExecutor != null || mFixedPointCosts || mBandedSearch)
+    			Log.i(TAG, "batched search ignores convergence stop, parallel search, fixed point costs and banded search");
+    		BatchedPathSearch batched = new BatchedPathSearch(mPixelBuffer, mWidth, mHeight);
+    		paths = batched.findStablePaths(pathLeftBound, pathRightBound, getSeedRows(), mMetrics);
+    		mMetrics.addCount(PipelineMetrics.STABLE_PATHS, paths.size());
+    	}
+    	else if(mPyramidFactor > 1 && mWidth > mPyramidFactor)
+    	{
+    		if(mHistogramSeeding || mConvergenceStop || mSearchExecutor != null)
+    			Log.i(TAG, "pyramid search ignores histogram seeding, convergence stop and parallel search");
+    		if(mWorkspace == null)
+    			mWorkspace = new SearchWorkspace();
+    		PyramidPathSearch pyramid = new PyramidPathSearch(mPixelBuffer, mWidth, mHeight, mPyramidFactor, 2*mPyramidFactor);
+    		paths = pyramid.findStablePaths(new PyramidPathSearch.Search()
+    		{
+    			@Override
+    			public int[] shortestPath(int x, int xEnd, int y, boolean leftToRight)
+    			{
+    				return searchPath(mWorkspace, x, xEnd, y, leftToRight, null);
+    			}
+    		}, pathLeftBound, pathRightBound, 5, mHeight-5, mMetrics);
+    	}
+    	else
+    	{
+    		//the pyramid's coarse image needs at least 2 columns, on a narrower one the exact search is cheap anyway
+    		if(mPyramidFactor > 1)
+    			Log.i(TAG, "image too narrow for the pyramid search, searching every row");
+    		paths = findStablePaths(pathLeftBound, pathRightBound);
+    	}
+    	
+    	addDistinctPaths(paths);
+    }
+    
+    //seed rows next to each other usually end up on the same line, and their paths then differ only in the seed column.
+    // such a path is dropped when its seed sits in the same run as the kept path's seed (or both on background),
+    // since removeStaffLines would only clear the same runs again
+    private void addDistinctPaths(List<int[]> paths)
+    {
+    	Map<Integer, List<int[]>> seen = new HashMap<Integer, List<int[]>>();
+    	int duplicates = 0;
+    	for(int[] path : paths)
+    	{
+    		//far from any line, a band keeps the search from reaching one and a straight path over empty paper comes out stable
+    		if(mBandRadius > 0 && getForegroundFraction(path) < MIN_BANDED_FOREGROUND)
+    			continue;
+    		++mStablePathsFound;
+    		
+    		int hash = 1;
+    		for(int x=pathLeftBound+1; x<pathRightBound; ++x)
+    			hash = 31*hash + path[x];
+    		
+    		List<int[]> bucket = seen.get(hash);
+    		if(bucket == null)
+    		{
+    			bucket = new ArrayList<int[]>(1);
+    			seen.put(hash, bucket);
+    		}
+    		else if(containsPath(bucket, path))
+    		{
+    			++duplicates;
+    			continue;
+    		}
+    		bucket.add(path);
+    		mStablePaths.add(path);
+    	}
+    	mMetrics.addCount(PipelineMetrics.DUPLICATE_PATHS, duplicates);
+    }
+    
+    private boolean containsPath(List<int[]> bucket, int[] path)
+    {
+    	for(int[] other : bucket)
+    	{
+    		int x = pathLeftBound+1;
+    		while(x < pathRightBound && other[x] == path[x])
+    			++x;
+    		if(x == pathRightBound && isSameRun(pathLeftBound, other[pathLeftBound], path[pathLeftBound]))
+    			return true;
+    	}
+    	return false;
+    }
+    
+    private float getForegroundFraction(int[] path)
+    {
+    	int foreground = 0;
+    	for(int x=pathLeftBound; x<pathRightBound; ++x)
+    	{
+    		if(mPixelBuffer.get(path[x]*mWidth+x) != 0)
+    			++foreground;
+    	}
+    	return (float)foreground/(pathRightBound-pathLeftBound);
+    }
+    
+    //true if rows y0 and y1 of column x are both background or in one unbroken foreground run
+    private boolean isSameRun(int x, int y0, int y1)
+    {
+    	if(mPixelBuffer.get(y0*mWidth+x) == 0 && mPixelBuffer.get(y1*mWidth+x) == 0)
+    		return true;
+    	
+    	for(int y=Math.min(y0, y1); y<=Math.max(y0, y1); ++y)
+    	{
+    		if(mPixelBuffer.get(y*mWidth+x) == 0)
+    			return false;
+    	}
+    	return true;
+    }
+    
+    //runs one shortest path search with whichever cost storage is configured
+    private int[] searchPath(SearchWorkspace workspace, int x, int xEnd, int y, boolean leftToRight, int[] mergeInto)
+    {
+    	if(mBandRadius > 0)
+    	{
+    		if(workspace.bandedSearch == null || workspace.bandedSearch.getBandRadius() != mBandRadius)
+    			workspace.bandedSearch = new BandedPathSearch(mPixelBuffer, mWidth, mHeight, mBandRadius);
+    		return workspace.bandedSearch.shortestPath(x, xEnd, y, leftToRight, mergeInto);
+    	}
+    	
+    	if(mFixedPointCosts && mWindowSeeds == null)
+    	{
+    		if(workspace.fixedPointSearch == null)
+    			workspace.fixedPointSearch = new FixedPointPathSearch(mPixelBuffer, mWidth, mHeight);
+    		return workspace.fixedPointSearch.shortestPath(x, xEnd, y, leftToRight, mergeInto);
+    	}
+    	
+    	if(mLowMemorySearch || mWindowSeeds != null)
+    	{
+    		if(workspace.rollingSearch == null)
+    		{
+    			workspace.rollingSearch = new RollingPathSearch(mPixelBuffer, mWidth, mHeight);
+    			workspace.rollingSearch.setOpenEdges(mTopOpen, mBottomOpen);
+    		}
+    		return workspace.rollingSearch.shortestPath(x, xEnd, y, leftToRight, mergeInto);
+    	}
+    	
+    	if(workspace.costList == null || workspace.costList.length < mWidth*mHeight)
+    		workspace.costList = new float[mWidth*mHeight];
+    	Arrays.fill(workspace.costList, 0, mWidth*mHeight, Float.MAX_VALUE-5.f);
+    	return shortestPath(workspace.costList, x, xEnd, y, leftToRight, mergeInto);
+    }
+    
+    //rows 5 to h-5, or the histogram's candidates with setHistogramSeeding, in increasing order
+    private int[] getSeedRows()
+    {
+    	final int firstRow = 5;
+    	final int lastRow = mHeight-5;
+    	if(mHistogramSeeding)
+    		return mLineStats.getCandidateSeedRows(firstRow, lastRow, mSeedSampleSpacing);
+    	
+    	int[] seeds = new int[Math.max(0, lastRow-firstRow)];
+    	for(int i=0; i<seeds.length; ++i)
+    		seeds[i] = firstRow+i;
+    	return seeds;
+    }
+    
+    private List<int[]> findStablePaths(final int xStart, final int xEnd)
+    { 
+    	final int[] seeds = (mWindowSeeds != null) ? mWindowSeeds : getSeedRows();
+    	
+    	if(mWorkspace == null)
+    		mWorkspace = new SearchWorkspace();
+    	if(mSearchExecutor == null || mSearchPartitions == 1 || seeds.length < 2*mSearchPartitions)
+    	{
+    		SeedBlock block = findStablePaths(mWorkspace, xStart, xEnd, seeds, 0, seeds.length);
+    		mClippedSeeds = block.clippedSeeds;
+    		mMetrics.addCount(PipelineMetrics.STABLE_PATHS, block.stablePaths.size());
+    		mMetrics.addCount(PipelineMetrics.CLIPPED_SEEDS, mClippedSeeds.size());
+    		return block.stablePaths;
+    	}
+    	
+    	//contiguous blocks of rows, so neighbouring rows that share a right endpoint stay in the same partition
+    	List<Future<SeedBlock>> results = new ArrayList<Future<SeedBlock>>();
+    	for(int i=0; i<mSearchPartitions; ++i)
+    	{
+    		final int from = (int)((long)seeds.length*i/mSearchPartitions);
+    		final int to = (int)((long)seeds.length*(i+1)/mSearchPartitions);
+    		results.add(mSearchExecutor.submit(new Callable<SeedBlock>()
+    		{
+    			@Override
+    			public SeedBlock call()
+    			{
+    				return findStablePaths(new SearchWorkspace(), xStart, xEnd, seeds, from, to);
+    			}
+    		}));
+    	}
+    	
+    	List<int[]> paths = new ArrayList<int[]>();
+    	mClippedSeeds = new ArrayList<Integer>();
+    	try
+    	{
+    		int[] carried = null;
+    		for(Future<SeedBlock> result : results)
+    		{
+    			SeedBlock block = result.get();
+    			if(mConvergenceStop && carried != null)
+    				carryConvergence(block, carried, xStart, xEnd, seeds);
+    			paths.addAll(block.stablePaths);
+    			mClippedSeeds.addAll(block.clippedSeeds);
+    			carried = block.lastPath;
+    		}
+    	}
+    	catch(InterruptedException e)
+    	{
+    		for(Future<SeedBlock> result : results)
+    			result.cancel(true);
+    		Thread.currentThread().interrupt();
+    		throw new RuntimeException("stable path search interrupted", e);
+    	}
+    	catch(ExecutionException e)
+    	{
+    		for(Future<SeedBlock> result : results)
+    			result.cancel(true);
+    		throw new RuntimeException("stable path search failed", e.getCause());
+    	}
+    	mMetrics.addCount(PipelineMetrics.STABLE_PATHS, paths.size());
+    	mMetrics.addCount(PipelineMetrics.CLIPPED_SEEDS, mClippedSeeds.size());
+    	return paths;
+    }
+    
+    //searches the seed rows seeds[from] to seeds[to-1], which are in increasing order, and returns the stable paths in row order.
+    // a reverse search is only ever needed for the two columns the stability test compares, so those are kept per right end
+    // row and each right end is searched backwards once, whichever seed reached it first
+    private SeedBlock findStablePaths(SearchWorkspace workspace, int xStart, int xEnd, int[] seeds, int from, int to)
+    { 
+    	SeedBlock block = new SeedBlock(from, to);
+    	int[] reverseStartY = new int[mHeight];		//y at xStart+1 of the reverse search from each right end row
+    	int[] reverseEndY = new int[mHeight];		//and at xEnd-1
+    	boolean[] reverseClipped = new boolean[mHeight];
+    	Arrays.fill(reverseStartY, -1);
+    	int[] lastPath = null;
+
+    	int searches = 0;
+    	int reuses = 0;
+    	for(int i=from; i<to; ++i)		//find the shortest path for each seed row, starting on the left side
+    	{
+    		int row = seeds[i];
+    		int[] leftToRightPath = searchPath(workspace, xStart, xEnd, row, true, mConvergenceStop ? lastPath : null);
+    		boolean clipped = isCutOff(workspace);
+    		lastPath = leftToRightPath;
+    		if(i-from < SeedBlock.HEAD_PATHS)
+    			block.headPaths.add(leftToRightPath);
+    		++searches;
+    		
+    		int rightEndY = leftToRightPath[xEnd-1];
+    		if(reverseStartY[rightEndY] < 0)
+    		{
+    			int[] rightToLeftPath = searchPath(workspace, xEnd, xStart, rightEndY, false, null);
+    			reverseStartY[rightEndY] = rightToLeftPath[xStart+1];
+    			reverseEndY[rightEndY] = rightToLeftPath[xEnd-1];
+    			reverseClipped[rightEndY] = isCutOff(workspace);
+    			++searches;
+    		}
+    		else
+    			++reuses;
+
+    		if(clipped || reverseClipped[rightEndY])
+    			block.clippedSeeds.add(row);
+    		//if the endpoints are the same from each search, the path is stable
+    		else if(reverseStartY[rightEndY] == leftToRightPath[xStart+1] && reverseEndY[rightEndY] == leftToRightPath[xEnd-1])	
+			{
+				block.add(i, leftToRightPath);
+			}
+    	}//end for row
+    	block.lastPath = lastPath;
+    	
+    	//counted per partition so the hot loop never touches the shared metrics
+    	mMetrics.addCount(PipelineMetrics.SHORTEST_PATH_CALLS, searches);
+    	mMetrics.addCount(PipelineMetrics.REVERSE_SEARCH_REUSES, reuses);
+    	return block;
+    }
+    
+    //with convergence stop, a forward search depends on the path of the seed before it, which the partition searched
+    // without. the block's first seeds are searched again against carried, the previous block's last path, until one
+    // comes out as the partition had it, from there on the chain is the sequential one. stable paths of the seeds
+    // searched again are replaced, so the merged result is that of the sequential search
+    private void carryConvergence(SeedBlock block, int[] carried, int xStart, int xEnd, int[] seeds)
+    {
+    	List<int[]> stablePaths = new ArrayList<int[]>();
+    	List<Integer> clippedSeeds = new ArrayList<Integer>();
+    	int i = block.from;
+    	int searches = 0;
+    	for(; i<block.to; ++i)
+    	{
+    		int[] path = searchPath(mWorkspace, xStart, xEnd, seeds[i], true, carried);
+    		boolean clipped = isCutOff(mWorkspace);
+    		++searches;
+    		int head = i - block.from;
+    		if(head < block.headPaths.size() && Arrays.equals(path, block.headPaths.get(head)))
+    			break;
+    		
+    		int[] rightToLeftPath = searchPath(mWorkspace, xEnd, xStart, path[xEnd-1], false, null);
+    		++searches;
+    		if(clipped || isCutOff(mWorkspace))
+    			clippedSeeds.add(seeds[i]);
+    		else if(rightToLeftPath[xStart+1] == path[xStart+1] && rightToLeftPath[xEnd-1] == path[xEnd-1])
+    			stablePaths.add(path);
+    		carried = path;
+    	}
+    	mMetrics.addCount(PipelineMetrics.SHORTEST_PATH_CALLS, searches);
+    	if(i == block.from)
+    		return;
+    	
+    	//seeds before i are replaced, the rest of the block stands
+    	for(int p=0; p<block.stablePaths.size(); ++p)
+    	{
+    		if(block.stableSeeds.get(p) >= i)
+    			stablePaths.add(block.stablePaths.get(p));
+    	}
+    	for(int seed : block.clippedSeeds)
+    	{
+    		if(i < block.to && seed >= seeds[i])
+    			clippedSeeds.add(seed);
+    	}
+    	block.stablePaths = stablePaths;
+    	block.clippedSeeds = clippedSeeds;
+    	if(i == block.to)
+    		block.lastPath = carried;
+    }
+    
+    //true if the workspace's last search may have been cut off by an open edge of setSearchWindow's window
+    private boolean isCutOff(SearchWorkspace workspace)
+    {
+    	return mWindowSeeds != null && workspace.rollingSearch.isCutOff();
+    }
+    
+    public void removeStaffLines()
+    {
+    	if(mStablePathsFound < 5)
+    	{
+    		Log.i(TAG, "less than 5 staff lines found");
+    		return;
+    	}
+    	
+    	mMetrics.startStage("removeStaffLines");
+    	removeStaffLines(mStablePaths, getStaffLineSize(), 0);
+    	mMetrics.endStage();
+    }
+    
+    //clears the foreground runs under the given paths that are no thicker than the staff lines.
+    // the paths are in coordinates offsetY rows above this image (for a strip of a page), points that fall outside it are skipped
+    public void removeStaffLines(List<int[]> paths, int lineThickness, int offsetY)
+    {
+    	//every run is found once up front, so each (path, x) is a binary search instead of a walk up and down the column
+    	VerticalRunIndex runs = (mPackedImage != null) ? VerticalRunIndex.build(mPackedImage) : VerticalRunIndex.build(mPixelBuffer, mWidth, mHeight);
+    	
+    	for(int[] path : paths)
+    	{
+    		for(int x=pathLeftBound; x<pathRightBound; ++x)
+    		{
+    			int y = path[x] - offsetY;
+    			if(y < 0 || y >= mHeight)
+    				continue;
+    			
+    			int run = runs.findRun(x, y);
+    			if(run < 0)		//background, or a run that was already removed
+    				continue;
+    			
+    			int yTop = runs.getRunTop(run);
+    			int yBot = runs.getRunEnd(run)-1;
+    			
+    			int lineWidth = yBot-yTop+2;	//counted from the background pixel above to the one below, like the column walk did
+    			if(lineWidth <= lineThickness+0.1*lineThickness)
+    			{
+    				runs.removeRun(run);
+    				if(mPackedImage != null)
+    					mPackedImage.clearColumn(x, yTop, yBot);
+    				for(int yi=yTop; yi<=yBot; ++yi)
+    				{
+    					mPixelBuffer.put(yi*mWidth+x, (byte)0);
+    				}
+    			}
+    		}
+    	}
+    }
+    
+    //what one partition of the per row search found, with what carryConvergence needs to redo its first seeds
+    private static class SeedBlock
+    {
+    	//first forward paths kept per block. the chain nearly always rejoins within a couple of seeds, past these
+    	// carryConvergence searches the rest of the block again
+    	static final int HEAD_PATHS = 16;
+    	
+    	final int from;
+    	final int to;
+    	List<int[]> stablePaths;
+    	final List<Integer> stableSeeds;	//seed index of each stable path
+    	final List<int[]> headPaths;
+    	List<Integer> clippedSeeds;		//seed rows, not indices
+    	int[] lastPath;
+    	
+    	SeedBlock(int from, int to)
+    	{
+    		this.from = from;
+    		this.to = to;
+    		stablePaths = new ArrayList<int[]>();
+    		stableSeeds = new ArrayList<Integer>();
+    		headPaths = new ArrayList<int[]>();
+    		clippedSeeds = new ArrayList<Integer>();
+    		lastPath = null;
+    	}
+    	
+    	void add(int seed, int[] path)
+    	{
+    		stablePaths.add(path);
+    		stableSeeds.add(seed);
+    	}
+    }
+    
+    //scratch storage for one thread running the per row search
+    private static class SearchWorkspace
+    {
+    	float[] costList;
+    	RollingPathSearch rollingSearch;
+    	BandedPathSearch bandedSearch;
+    	FixedPointPathSearch fixedPointSearch;
+    }
+    
+    void calcStaffSpacingAndThickness()
+    {
+    	mLineStats.calcStaffSpacingAndThickness();
+    }
+}
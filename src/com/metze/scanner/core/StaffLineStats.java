@@ -0,0 +1,167 @@
+package com.metze.scanner.core;
+
+import java.util.Arrays;
+
+//staff line positions, thickness and spacing, worked out from the horizontal projection histogram alone.
+// split out of StaffAnalyzer so a page assembled from strips can be measured without holding its pixels
+public class StaffLineStats
+{
+	protected static final String TAG = "StaffLineStats";
+	private static final double PEAK_FRACTION = 0.2;
+
+    private final int[] mHorizontalProjHist;
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mStaffLineLabels;	//line number of each row, -1 for rows that aren't part of a staff line
+    
+    private int mStaffLineThickness;
+    private int mStaffLineSpacing;
+    private int mTotalStaffLines;
+    private int mNumStaffs;
+
+    //hist has one entry per image row, width is the width of the image it was counted over
+    public StaffLineStats(int[] hist, int width)
+    {
+    	mHorizontalProjHist = hist;
+    	mWidth = width;
+    	mHeight = hist.length;
+    	
+    	mStaffLineThickness = 0;
+        mStaffLineSpacing = 0;
+        mTotalStaffLines = 0;
+        mNumStaffs = 0;
+        
+        mStaffLineLabels = new int[mHeight];
+        Arrays.fill(mStaffLineLabels, -1);
+    }
+    
+    public int getStaffLineSize()
+    {
+    	return mStaffLineThickness;
+    }
+    
+    public int getStaffSpaceSize()
+    {
+    	return mStaffLineSpacing;
+    }
+    
+    public int getTotalStaffLines()
+    {
+    	return mTotalStaffLines;
+    }
+    
+    public int getNumStaffs()
+    {
+    	return mNumStaffs;
+    }
+    
+    public boolean isStaffLineAt(int y)
+    {
+    	return (y >= 0 && y < mHeight && mStaffLineLabels[y] >= 0);
+    }
+    
+    //finds the y position of the staff lines and labels them in mStaffLineLabels.
+    // a row is part of a line if its histogram reaches into the slice of x values we look at. a row is reached for every
+    // threshold in the slice up to its histogram value, so it is always first reached at sliceStart, and one pass
+    // with that threshold gives the same numbering as trying every threshold in the slice
+    public void findStaffLinePositions()
+    {
+        Log.i(TAG, "findStaffLinePositions");
+        final int sliceStart = (int)(0.45*mWidth);
+        final int sliceEnd = (int)(0.65*mWidth);
+        if(sliceStart >= sliceEnd)
+        	return;
+        
+        boolean connected = false;
+        int lineNum = 0;
+        for(int y=0; y<mHeight; ++y)
+        {
+            if(mHorizontalProjHist[y] >= sliceStart)  //the histogram for this y value is within the slice we're looking at
+            {
+            	mStaffLineLabels[y] = lineNum;
+                connected = true;
+            }
+            else if(connected)  //encountered whitespace after a line
+            {
+                lineNum++;
+                connected = false;
+            }
+        }
+    }
+    
+    public void calcStaffSpacingAndThickness()
+    {
+    	Log.i(TAG, "calcStaffSpacingAndThickness");
+
+        int lastLineNum = -1;
+        int lastLineY = -1;
+        int totalLineThickness = 0;
+        int totalStaffSpacing = 0;
+        
+        for(int i=0; i<mHeight; ++i)
+        {
+            int lineNumber = mStaffLineLabels[i];
+            if(lineNumber >= 0) //this y value was mapped to a staff line
+            {
+                totalLineThickness++;
+                if(lineNumber != lastLineNum)   //if it's not part of the same line as last iteration
+                {                               //increment the line count and check the spacing
+                	mTotalStaffLines++;
+                    if(lineNumber%5 != 0)   //not the first line of a staff
+                    {
+                        totalStaffSpacing += (i-lastLineY);
+                    }
+                    lastLineY = i;
+                    lastLineNum = lineNumber;
+                }
+            }
+        }
+
+        if(mTotalStaffLines > 1)
+        {
+        	mStaffLineThickness = totalLineThickness/mTotalStaffLines;
+            mStaffLineSpacing = totalStaffSpacing/(mTotalStaffLines-1);
+        }
+        
+        mNumStaffs = (int) (mTotalStaffLines/5.0);
+    }
+    
+    //seed rows in [rowMin, rowMax) worth starting a stable path search from, in increasing order: rows within a
+    // line thickness of a labeled staff line, rows around local peaks of the histogram that reach PEAK_FRACTION of
+    // the width (lines too skewed or broken to reach the labeling slice), and every sampleSpacing-th row if it is > 0
+    public int[] getCandidateSeedRows(int rowMin, int rowMax, int sampleSpacing)
+    {
+    	final int margin = Math.max(2, mStaffLineThickness);
+    	final int peakMin = (int)(PEAK_FRACTION*mWidth);
+    	boolean[] candidate = new boolean[mHeight];
+    	
+    	for(int y=0; y<mHeight; ++y)
+    	{
+    		boolean peak = mHorizontalProjHist[y] >= peakMin
+    				&& (y == 0 || mHorizontalProjHist[y] >= mHorizontalProjHist[y-1])
+    				&& (y == mHeight-1 || mHorizontalProjHist[y] >= mHorizontalProjHist[y+1]);
+    		if(mStaffLineLabels[y] >= 0 || peak)
+    		{
+    			for(int yi=Math.max(0, y-margin); yi<=Math.min(mHeight-1, y+margin); ++yi)
+    				candidate[yi] = true;
+    		}
+    		if(sampleSpacing > 0 && y%sampleSpacing == 0)
+    			candidate[y] = true;
+    	}
+    	
+    	int count = 0;
+    	for(int y=Math.max(0, rowMin); y<Math.min(mHeight, rowMax); ++y)
+    	{
+    		if(candidate[y])
+    			++count;
+    	}
+    	int[] rows = new int[count];
+    	count = 0;
+    	for(int y=Math.max(0, rowMin); y<Math.min(mHeight, rowMax); ++y)
+    	{
+    		if(candidate[y])
+    			rows[count++] = y;
+    	}
+    	return rows;
+    }
+}
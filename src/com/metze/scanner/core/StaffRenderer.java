@@ -0,0 +1,128 @@
+package com.metze.scanner.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+//renders StaffAnalyzer results into ARGB int buffers in one pass, so the caller can commit them with a single
+// bulk call (Bitmap.setPixels on android, BufferedImage.setRGB on the JVM) instead of setting pixels one at a time.
+// the buffer passed in is reused when it is big enough
+public class StaffRenderer
+{
+	public static final int BLACK = 0xff000000;
+	public static final int WHITE = 0xffffffff;
+
+	private static int[] ensureBuffer(int[] argb, int size)
+	{
+		if(argb == null || argb.length < size)
+			return new int[size];
+		return argb;
+	}
+
+	//foreground pixels white, background black, then the stable paths drawn over them unless colors is null
+	public static int[] renderProcessed(StaffAnalyzer staffInfo, int[] argb, Random colors)
+	{
+		return renderProcessed(staffInfo.getImage(), staffInfo.getWidth(), staffInfo.getHeight(), staffInfo.getStablePaths(),
+				staffInfo.getPathLeftBound(), staffInfo.getPathRightBound(), argb, colors);
+	}
+
+	//same as above for a cached result, which must have been stored with its cleaned image
+	public static int[] renderProcessed(AnalysisResult result, int[] argb, Random colors)
+	{
+		return renderProcessed(result.getCleanedPixels(), result.getWidth(), result.getHeight(), result.getStablePaths(),
+				result.getPathLeftBound(), result.getPathRightBound(), argb, colors);
+	}
+
+	public static int[] renderProcessed(byte[] pixels, int w, int h, List<int[]> stablePaths, int xStart, int xEnd,
+			int[] argb, Random colors)
+	{
+		return renderProcessed(ByteBuffer.wrap(pixels), w, h, stablePaths, xStart, xEnd, argb, colors);
+	}
+
+	public static int[] renderProcessed(ByteBuffer pixels, int w, int h, List<int[]> stablePaths, int xStart, int xEnd,
+			int[] argb, Random colors)
+	{
+		final int size = w*h;
+		argb = ensureBuffer(argb, size);
+
+		for(int i=0; i<size; ++i)
+		{
+			argb[i] = (pixels.get(i) == -1) ? WHITE : BLACK;
+		}
+
+		if(colors != null)
+			overlayStaffLines(w, stablePaths, xStart, xEnd, argb, colors);
+		return argb;
+	}
+
+	//renderProcessed into the buffer the analyzer's image is at the start of, as 4 byte RGBA pixels (the layout of
+	// Bitmap.copyPixelsFromBuffer for ARGB_8888), so no int buffer is needed. rgba must hold 4*w*h bytes.
+	// pixels are expanded from the last one back, so each is read before anything is written over it,
+	// and the binary image is gone afterwards
+	public static void renderProcessedInPlace(StaffAnalyzer staffInfo, ByteBuffer rgba, Random colors)
+	{
+		final int w = staffInfo.getWidth();
+		final ByteBuffer pixels = staffInfo.getImage();
+		for(int i=w*staffInfo.getHeight()-1; i>=0; --i)
+		{
+			byte value = (pixels.get(i) == -1) ? (byte)0xff : 0;
+			rgba.put(4*i, value);
+			rgba.put(4*i+1, value);
+			rgba.put(4*i+2, value);
+			rgba.put(4*i+3, (byte)0xff);
+		}
+
+		if(colors == null)
+			return;
+		for(int[] p : staffInfo.getStablePaths())
+		{
+			int color = colors.nextInt(0x1000000);
+			for(int x=staffInfo.getPathLeftBound(); x<=staffInfo.getPathRightBound(); ++x)
+			{
+				int i = 4*(p[x]*w + x);
+				rgba.put(i, (byte)(color >> 16));
+				rgba.put(i+1, (byte)(color >> 8));
+				rgba.put(i+2, (byte)color);
+			}
+		}
+	}
+
+	//draws every stable path in a random color, argb must be an image of the analyzer's size
+	public static void overlayStaffLines(StaffAnalyzer staffInfo, int[] argb, Random colors)
+	{
+		overlayStaffLines(staffInfo.getWidth(), staffInfo.getStablePaths(),
+				staffInfo.getPathLeftBound(), staffInfo.getPathRightBound(), argb, colors);
+	}
+
+	public static void overlayStaffLines(int w, List<int[]> stablePaths, int xStart, int xEnd, int[] argb, Random colors)
+	{
+		for(int[] p : stablePaths)
+		{
+			int color = BLACK | colors.nextInt(0x1000000);
+			for(int x=xStart; x<=xEnd; ++x)
+			{
+				argb[p[x]*w + x] = color;
+			}
+		}
+	}
+
+	//each row is black out to its count in the horizontal projection histogram and white after that
+	public static int[] renderProjectionHist(StaffAnalyzer staffInfo, int[] argb)
+	{
+		final int w = staffInfo.getWidth();
+		final int h = staffInfo.getHeight();
+		final int[] hist = staffInfo.getHorizontalProjHist();
+		argb = ensureBuffer(argb, w*h);
+
+		for(int row=0; row<h; ++row)
+		{
+			int rowStart = row*w;
+			int blackEnd = rowStart + Math.min(w, hist[row]+1);
+			Arrays.fill(argb, rowStart, blackEnd, BLACK);
+			Arrays.fill(argb, blackEnd, rowStart+w, WHITE);
+		}
+
+		return argb;
+	}
+}
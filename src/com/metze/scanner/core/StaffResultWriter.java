@@ -0,0 +1,111 @@
+package com.metze.scanner.core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+//writes an AnalysisResult in the versioned binary result format read by MappedStaffResult.
+// all values are big endian. layout of version 1:
+//   header   magic "MSRF", u16 version, u16 flags, then ints width, height, line thickness, line spacing,
+//            total staff lines, staffs, path left bound, path right bound, path count, image offset (0 if none)
+//   index    path count + 1 int offsets from the start of the file, entry i+1 is where path i ends
+//   paths    each path over x in [left bound, right bound]: zigzag varint of the first y, then zigzag varint deltas.
+//            staff lines move at most one row per column, so nearly every column takes one byte
+//   image    optional, 8 byte aligned: the cleaned image as PackedBinaryImage words, wordsPerRow longs per row
+public class StaffResultWriter
+{
+	static final int MAGIC = 0x4d535246;	//"MSRF"
+	static final int VERSION = 1;
+	static final int FLAG_HAS_IMAGE = 1;
+	static final int HEADER_SIZE = 48;
+
+	public static void write(AnalysisResult result, File file) throws IOException
+	{
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try
+		{
+			write(result, out);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	public static void write(AnalysisResult result, OutputStream stream) throws IOException
+	{
+		final int left = result.getPathLeftBound();
+		final int right = result.getPathRightBound();
+		final List<int[]> paths = result.getStablePaths();
+		final byte[] pixels = result.getCleanedPixels();
+
+		//the paths are encoded first so the index and image offset are known before anything is written
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		int[] pathEnds = new int[paths.size()];
+		for(int i=0; i<paths.size(); ++i)
+		{
+			int[] path = paths.get(i);
+			int prevY = 0;
+			for(int x=left; x<=right; ++x)
+			{
+				writeVarint(encoded, zigzag(path[x] - prevY));
+				prevY = path[x];
+			}
+			pathEnds[i] = encoded.size();
+		}
+
+		final int pathsStart = HEADER_SIZE + 4*(paths.size()+1);
+		final int pathsEnd = pathsStart + encoded.size();
+		final int imageOffset = (pixels != null) ? (pathsEnd + 7) & ~7 : 0;
+
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeShort(pixels != null ? FLAG_HAS_IMAGE : 0);
+		out.writeInt(result.getWidth());
+		out.writeInt(result.getHeight());
+		out.writeInt(result.getStaffLineSize());
+		out.writeInt(result.getStaffSpaceSize());
+		out.writeInt(result.getTotalStaffLines());
+		out.writeInt(result.getNumStaffs());
+		out.writeInt(left);
+		out.writeInt(right);
+		out.writeInt(paths.size());
+		out.writeInt(imageOffset);
+
+		out.writeInt(pathsStart);
+		for(int end : pathEnds)
+			out.writeInt(pathsStart + end);
+		encoded.writeTo(out);
+
+		if(pixels != null)
+		{
+			for(int pad=pathsEnd; pad<imageOffset; ++pad)
+				out.writeByte(0);
+			PackedBinaryImage packed = PackedBinaryImage.pack(pixels, result.getWidth(), result.getHeight());
+			for(long word : packed.getWords())
+				out.writeLong(word);
+		}
+		out.flush();
+	}
+
+	private static int zigzag(int v)
+	{
+		return (v << 1) ^ (v >> 31);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int v)
+	{
+		while((v & ~0x7f) != 0)
+		{
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+}
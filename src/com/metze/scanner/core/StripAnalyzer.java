@@ -0,0 +1,342 @@
+package com.metze.scanner.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+//analyses a page a horizontal strip at a time so peak memory depends on the strip height instead of the page size.
+// each strip is read with overlap rows above and below it, and the page is read up to three times:
+//  1. preprocess every strip and build one histogram for a page wide otsu threshold
+//  2. binarize every strip, add its rows to the page projection histogram and search it for stable paths.
+//     only the strip's own (non overlap) rows seed the search, and the paths are moved into page coordinates.
+//     a seed whose forward or reverse walk the rows past the window could have changed (StaffAnalyzer.setSearchWindow)
+//     is searched again in a window with twice the margin, until none could or the window is the whole page, so a
+//     path crosses as many strips as it needs. the paths of all strips are then merged in seed order and duplicates
+//     dropped like a whole page analysis does
+//  3. if a sink is set, binarize every strip again, remove the staff lines under the page paths and hand the rows to the sink
+// line positions, thickness and spacing come from the page histogram, and the stable paths are the ones a whole page
+// analysis with the low memory search finds, so the cleaned page is the same too. peak memory is set by the tallest
+// window the seeds need, a few strips on a page of staves, all of it on a page where a walk can't be settled sooner.
+// only the low memory per row search runs here: no fixed point costs, batched, pyramid, histogram
+// seeding, convergence stop or banded search
+public class StripAnalyzer
+{
+	protected static final String TAG = "StripAnalyzer";
+
+	//rows above/below a strip needed so the sobel + dilate and the 5 row path seed margin see real pixels
+	private static final int MIN_OVERLAP = 8;
+
+	//where the page pixels come from, rows are returned as argb
+	public interface StripSource
+	{
+		int getWidth();
+		int getHeight();
+		void readRows(int y, int rows, int[] argb) throws IOException;
+	}
+
+	//receives the cleaned page in order, rows pixels starting at offset are in the StaffAnalyzer -1/0 convention
+	public interface StripSink
+	{
+		void writeRows(int y, int rows, byte[] pixels, int offset) throws IOException;
+	}
+
+	private final StripSource mSource;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mStripHeight;
+	private final int mOverlap;
+
+	private StripSink mSink;
+	private ExecutorService mSearchExecutor;
+	private int mSearchPartitions;
+
+	private int[] mStripArgb;
+	private int[] mHorizontalProjHist;
+	private StaffLineStats mLineStats;
+	private List<int[]> mStablePaths;
+	private int mStablePathsFound;	//the windows' stable paths before duplicates were dropped, as StaffAnalyzer counts them
+	private byte[] mLeftColumn;		//the binary page's column at the left path bound, for telling duplicate paths apart
+	private int mThreshold;
+	private PipelineMetrics mMetrics;
+
+	public StripAnalyzer(StripSource source, int stripHeight, int overlap)
+	{
+		mSource = source;
+		mWidth = source.getWidth();
+		mHeight = source.getHeight();
+		mStripHeight = Math.max(1, stripHeight);
+		mOverlap = Math.max(MIN_OVERLAP, overlap);
+
+		mSink = null;
+		mSearchExecutor = null;
+		mSearchPartitions = 1;
+
+		mStripArgb = null;
+		mHorizontalProjHist = new int[mHeight];
+		mLineStats = null;
+		mStablePaths = new ArrayList<int[]>();
+		mStablePathsFound = 0;
+		mLeftColumn = new byte[mHeight];
+		mThreshold = 0;
+		mMetrics = new PipelineMetrics();
+	}
+
+	public void setStripSink(StripSink sink)
+	{
+		mSink = sink;
+	}
+
+	//same as StaffAnalyzer.setParallelSearch, each window's seeds are split over the executor
+	public void setParallelSearch(ExecutorService executor, int partitions)
+	{
+		mSearchExecutor = executor;
+		mSearchPartitions = Math.max(1, partitions);
+	}
+
+	//the strips' search counters are added to the same metrics as the passes over the page
+	public void setMetrics(PipelineMetrics metrics)
+	{
+		mMetrics = metrics;
+	}
+
+	public PipelineMetrics getMetrics()
+	{
+		return mMetrics;
+	}
+
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+	public int getThreshold()
+	{
+		return mThreshold;
+	}
+
+	public int[] getHorizontalProjHist()
+	{
+		return mHorizontalProjHist;
+	}
+
+	//stable paths in page coordinates, ordered by their left end row
+	public List<int[]> getStablePaths()
+	{
+		return mStablePaths;
+	}
+
+	public StaffLineStats getLineStats()
+	{
+		return mLineStats;
+	}
+
+	public void process() throws IOException
+	{
+		mMetrics.startStage("findThreshold");
+		mThreshold = findThreshold();
+		mMetrics.startStage("searchStrips");
+		searchStrips();
+
+		mMetrics.startStage("staffLineStats");
+		mLineStats = new StaffLineStats(mHorizontalProjHist, mWidth);
+		mLineStats.findStaffLinePositions();
+		mLineStats.calcStaffSpacingAndThickness();
+
+		if(mSink != null)
+		{
+			mMetrics.startStage("removeStaffLines");
+			removeStaffLines();
+		}
+		mMetrics.endStage();
+	}
+
+	private int findThreshold() throws IOException
+	{
+		Log.i(TAG, "findThreshold");
+		long[] hist = new long[256];
+		for(int coreTop=0; coreTop<mHeight; coreTop+=mStripHeight)
+		{
+			int coreEnd = Math.min(mHeight, coreTop+mStripHeight);
+			int top = Math.max(0, coreTop-mOverlap);
+			int rows = Math.min(mHeight, coreEnd+mOverlap) - top;
+
+			int[] values = Binarizer.preprocess(readStrip(top, rows), mWidth, rows);
+			Binarizer.accumulateHistogram(values, (coreTop-top)*mWidth, (coreEnd-top)*mWidth, hist);
+		}
+		return Binarizer.otsuThreshold(hist);
+	}
+
+	private void searchStrips() throws IOException
+	{
+		Log.i(TAG, "searchStrips");
+		List<int[]> paths = new ArrayList<int[]>();
+		//every strip is page wide, so its path bounds are the page's
+		final int xStart = mWidth/8;
+		final int xEnd = mWidth - xStart;
+		for(int coreTop=0; coreTop<mHeight; coreTop+=mStripHeight)
+		{
+			int coreEnd = Math.min(mHeight, coreTop+mStripHeight);
+			//the page's seed rows are 5 to h-5, like StaffAnalyzer's, so each strip seeds its share of them
+			int[] seeds = rowRange(Math.max(5, coreTop), Math.min(mHeight-5, coreEnd));
+			for(int margin=mOverlap; ; margin*=2)
+			{
+				int top = Math.max(0, coreTop-margin);
+				int bottom = Math.min(mHeight, coreEnd+margin);
+				StaffAnalyzer strip = binarizeStrip(top, bottom-top);
+				if(margin == mOverlap)
+				{
+					strip.calcHorizontalProjHist();
+					System.arraycopy(strip.getHorizontalProjHist(), coreTop-top, mHorizontalProjHist, coreTop, coreEnd-coreTop);
+					for(int y=coreTop; y<coreEnd; ++y)
+						mLeftColumn[y] = strip.getPixel(xStart, y-top);
+				}
+				if(seeds.length == 0)
+					break;
+
+				for(int i=0; i<seeds.length; ++i)
+					seeds[i] -= top;
+				strip.setSearchWindow(seeds, top > 0, bottom < mHeight);
+				strip.findStablePaths();
+				mStablePathsFound += strip.getStablePathsFound();
+				for(int[] path : strip.getStablePaths())
+				{
+					for(int x=xStart; x<xEnd; ++x)
+						path[x] += top;
+					paths.add(path);
+				}
+
+				List<Integer> clipped = strip.getClippedSeeds();
+				seeds = new int[clipped.size()];
+				for(int i=0; i<seeds.length; ++i)
+					seeds[i] = clipped.get(i) + top;
+				if(seeds.length == 0)
+					break;
+			}
+		}
+
+		//a path starts on its seed row, so this is seed order, which is what a whole page search keeps duplicates by
+		Collections.sort(paths, new Comparator<int[]>()
+		{
+			@Override
+			public int compare(int[] a, int[] b)
+			{
+				return a[xStart] - b[xStart];
+			}
+		});
+		addDistinctPaths(paths, xStart, xEnd);
+	}
+
+	private static int[] rowRange(int from, int to)
+	{
+		int[] rows = new int[Math.max(0, to-from)];
+		for(int i=0; i<rows.length; ++i)
+			rows[i] = from+i;
+		return rows;
+	}
+
+	//StaffAnalyzer's duplicate test on the page: the same rows from the column after the left bound on, and seeds in
+	// the same run of the left bound column (or both on background). a strip only sees its own duplicates
+	private void addDistinctPaths(List<int[]> paths, int xStart, int xEnd)
+	{
+		Map<Integer, List<int[]>> seen = new HashMap<Integer, List<int[]>>();
+		int duplicates = 0;
+		for(int[] path : paths)
+		{
+			int hash = 1;
+			for(int x=xStart+1; x<xEnd; ++x)
+				hash = 31*hash + path[x];
+
+			List<int[]> bucket = seen.get(hash);
+			if(bucket == null)
+			{
+				bucket = new ArrayList<int[]>(1);
+				seen.put(hash, bucket);
+			}
+			else if(containsPath(bucket, path, xStart, xEnd))
+			{
+				++duplicates;
+				continue;
+			}
+			bucket.add(path);
+			mStablePaths.add(path);
+		}
+		mMetrics.addCount(PipelineMetrics.DUPLICATE_PATHS, duplicates);
+	}
+
+	private boolean containsPath(List<int[]> bucket, int[] path, int xStart, int xEnd)
+	{
+		for(int[] other : bucket)
+		{
+			int x = xStart+1;
+			while(x < xEnd && other[x] == path[x])
+				++x;
+			if(x == xEnd && isSameRun(other[xStart], path[xStart]))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean isSameRun(int y0, int y1)
+	{
+		if(mLeftColumn[y0] == 0 && mLeftColumn[y1] == 0)
+			return true;
+		for(int y=Math.min(y0, y1); y<=Math.max(y0, y1); ++y)
+		{
+			if(mLeftColumn[y] == 0)
+				return false;
+		}
+		return true;
+	}
+
+	private void removeStaffLines() throws IOException
+	{
+		Log.i(TAG, "removeStaffLines");
+		final int lineThickness = mLineStats.getStaffLineSize();
+		final boolean remove = mStablePathsFound >= 5;
+		if(!remove)
+			Log.i(TAG, "less than 5 staff lines found");
+
+		//a run clipped by the strip edge must still look thicker than a line, so it is never removed by mistake
+		final int overlap = Math.max(mOverlap, (int)(1.1*lineThickness) + 4);
+		for(int coreTop=0; coreTop<mHeight; coreTop+=mStripHeight)
+		{
+			int coreEnd = Math.min(mHeight, coreTop+mStripHeight);
+			int top = Math.max(0, coreTop-overlap);
+			int rows = Math.min(mHeight, coreEnd+overlap) - top;
+
+			StaffAnalyzer strip = binarizeStrip(top, rows);
+			if(remove)
+				strip.removeStaffLines(mStablePaths, lineThickness, top);
+			mSink.writeRows(coreTop, coreEnd-coreTop, strip.getPixels(), (coreTop-top)*mWidth);
+		}
+	}
+
+	private StaffAnalyzer binarizeStrip(int top, int rows) throws IOException
+	{
+		byte[] pixels = Binarizer.threshold(Binarizer.preprocess(readStrip(top, rows), mWidth, rows), mThreshold);
+		StaffAnalyzer strip = new StaffAnalyzer(pixels, mWidth, rows);
+		if(mSearchExecutor != null)
+			strip.setParallelSearch(mSearchExecutor, mSearchPartitions);
+		strip.setMetrics(mMetrics);
+		return strip;
+	}
+
+	//reads rows into the reused strip buffer, which can be longer than rows*width
+	private int[] readStrip(int top, int rows) throws IOException
+	{
+		if(mStripArgb == null || mStripArgb.length < rows*mWidth)
+			mStripArgb = new int[rows*mWidth];
+		mSource.readRows(top, rows, mStripArgb);
+		return mStripArgb;
+	}
+}
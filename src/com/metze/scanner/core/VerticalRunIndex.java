@@ -0,0 +1,162 @@
+package com.metze.scanner.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//per column index of the vertical foreground runs in a binary image, built in two row order passes.
+// runs are stored column by column (column x owns runs [columnStart[x], columnStart[x+1])) sorted by top row,
+// so finding the run that holds (x, y) is a binary search. removed runs stay in place with zero length
+public class VerticalRunIndex
+{
+	private final int mWidth;
+	private final int mHeight;
+	private final int[] mColumnStart;
+	private final int[] mRunTop;
+	private final int[] mRunEnd;		//exclusive
+
+	private VerticalRunIndex(int w, int h, int[] runsPerColumn)
+	{
+		mWidth = w;
+		mHeight = h;
+		mColumnStart = new int[w+1];
+		for(int x=0; x<w; ++x)
+		{
+			mColumnStart[x+1] = mColumnStart[x] + runsPerColumn[x];
+		}
+		mRunTop = new int[mColumnStart[w]];
+		mRunEnd = new int[mColumnStart[w]];
+	}
+
+	//builds the index from a StaffAnalyzer style buffer, any non zero pixel is foreground
+	public static VerticalRunIndex build(byte[] pixels, int w, int h)
+	{
+		return build(ByteBuffer.wrap(pixels), w, h);
+	}
+
+	public static VerticalRunIndex build(ByteBuffer pixels, int w, int h)
+	{
+		int[] runsPerColumn = new int[w];
+		for(int y=0; y<h; ++y)
+		{
+			int row = y*w;
+			for(int x=0; x<w; ++x)
+			{
+				if(pixels.get(row+x) != 0 && (y == 0 || pixels.get(row-w+x) == 0))
+					runsPerColumn[x]++;
+			}
+		}
+
+		VerticalRunIndex index = new VerticalRunIndex(w, h, runsPerColumn);
+		int[] cursor = Arrays.copyOf(index.mColumnStart, w);
+		for(int y=0; y<h; ++y)
+		{
+			int row = y*w;
+			for(int x=0; x<w; ++x)
+			{
+				if(pixels.get(row+x) == 0)
+					continue;
+				if(y == 0 || pixels.get(row-w+x) == 0)
+					index.mRunTop[cursor[x]] = y;
+				if(y == h-1 || pixels.get(row+w+x) == 0)
+					index.mRunEnd[cursor[x]++] = y+1;
+			}
+		}
+
+		return index;
+	}
+
+	//same as build(byte[]...) but finds run starts and ends a word at a time from the packed rows
+	public static VerticalRunIndex build(PackedBinaryImage image)
+	{
+		final int w = image.getWidth();
+		final int h = image.getHeight();
+		final int words = image.getWordsPerRow();
+		final long[] bits = image.getWords();
+
+		int[] runsPerColumn = new int[w];
+		for(int y=0; y<h; ++y)
+		{
+			for(int i=0; i<words; ++i)
+			{
+				long above = (y == 0) ? 0 : bits[(y-1)*words+i];
+				long starts = bits[y*words+i] & ~above;
+				while(starts != 0)
+				{
+					runsPerColumn[(i << 6) + Long.numberOfTrailingZeros(starts)]++;
+					starts &= starts-1;
+				}
+			}
+		}
+
+		VerticalRunIndex index = new VerticalRunIndex(w, h, runsPerColumn);
+		int[] cursor = Arrays.copyOf(index.mColumnStart, w);
+		for(int y=0; y<h; ++y)
+		{
+			for(int i=0; i<words; ++i)
+			{
+				long cur = bits[y*words+i];
+				long above = (y == 0) ? 0 : bits[(y-1)*words+i];
+				long below = (y == h-1) ? 0 : bits[(y+1)*words+i];
+
+				long starts = cur & ~above;
+				while(starts != 0)
+				{
+					int x = (i << 6) + Long.numberOfTrailingZeros(starts);
+					index.mRunTop[cursor[x]] = y;
+					starts &= starts-1;
+				}
+				long ends = cur & ~below;
+				while(ends != 0)
+				{
+					int x = (i << 6) + Long.numberOfTrailingZeros(ends);
+					index.mRunEnd[cursor[x]++] = y+1;
+					ends &= ends-1;
+				}
+			}
+		}
+
+		return index;
+	}
+
+	//index of the run in column x that contains row y, or -1 if (x, y) is background
+	public int findRun(int x, int y)
+	{
+		int lo = mColumnStart[x];
+		int hi = mColumnStart[x+1]-1;
+		int found = -1;
+		while(lo <= hi)		//last run with top <= y
+		{
+			int mid = (lo+hi) >>> 1;
+			if(mRunTop[mid] <= y)
+			{
+				found = mid;
+				lo = mid+1;
+			}
+			else
+			{
+				hi = mid-1;
+			}
+		}
+
+		if(found >= 0 && y < mRunEnd[found])
+			return found;
+		return -1;
+	}
+
+	public int getRunTop(int run)
+	{
+		return mRunTop[run];
+	}
+
+	//first background row below the run
+	public int getRunEnd(int run)
+	{
+		return mRunEnd[run];
+	}
+
+	//marks a run as cleared, later lookups treat its pixels as background
+	public void removeRun(int run)
+	{
+		mRunEnd[run] = mRunTop[run];
+	}
+}
@@ -0,0 +1,471 @@
+package com.metze.scanner.tools;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.metze.scanner.core.AnalysisResult;
+import com.metze.scanner.core.BilevelWriter;
+import com.metze.scanner.core.Binarizer;
+import com.metze.scanner.core.CropRegion;
+import com.metze.scanner.core.OutputQueue;
+import com.metze.scanner.core.PipelineMetrics;
+import com.metze.scanner.core.ResultCache;
+import com.metze.scanner.core.SearchOptions;
+import com.metze.scanner.core.SkewEstimator;
+import com.metze.scanner.core.StaffAnalyzer;
+import com.metze.scanner.core.StaffLineStats;
+import com.metze.scanner.core.StripAnalyzer;
+import com.metze.scanner.core.StaffRenderer;
+import com.metze.scanner.core.StaffResultWriter;
+
+//command line batch mode for the analysis core. runs on a plain JVM, no android or OpenCV needed.
+// builds from the repo root with:
+//   javac -d out src/com/metze/scanner/core/*.java tools/src/com/metze/scanner/tools/*.java
+//   java -cp out com.metze.scanner.tools.BatchProcessor res/raw batch_out
+// writes <name>_clean.png and <name>.msr (StaffResultWriter format) for every image plus metrics.csv with the staff measurements.
+// with --output-format pbm, pgm or rle the cleaned page is written as that bilevel format (BilevelWriter) instead of png.
+// the files are written on a background thread (OutputQueue) while the next images are analyzed.
+// with --strip-height the page is streamed in strips (StripAnalyzer) and written as <name>_clean.pbm, or the --output-format.
+// the result is that of --low-memory, and the options that need the whole page can't be combined with it.
+// --threads spreads the images over that many workers, --search-threads n also splits the seed rows of each image's
+// path search over n threads (StaffAnalyzer.setParallelSearch).
+// with --metrics-json, stage timings, allocations and search counters go to <name>_metrics.json.
+// with --cache dir, results are kept in dir keyed by image content and parameters, and a rerun skips the analysis
+// with --deskew, the binary image is straightened (SkewEstimator) before the analysis.
+// with --crop and --max-pixels, only that region is decoded, subsampled to stay under max-pixels
+public class BatchProcessor
+{
+	private static final String USAGE = "usage: BatchProcessor <input dir> <output dir> [--threads n] [--search-threads n] [--low-memory] [--fixed-point] [--batched] [--pyramid factor] [--histogram-seeding spacing] [--convergence-stop] [--banded] [--deskew] [--crop left,top,right,bottom] [--max-pixels n] [--overlay] [--output-format png|pbm|pgm|rle] [--strip-height rows] [--cache dir] [--metrics-json]";
+	private static final long CACHE_MEMORY_BYTES = 64L << 20;
+	private static final long CACHE_DISK_BYTES = 512L << 20;
+	private static final int OUTPUT_QUEUE_LENGTH = 4;
+
+	private final File mOutputDir;
+	private ExecutorService mSearchExecutor;	//null unless --search-threads is above 1
+	private int mSearchThreads;
+	private boolean mLowMemory;
+	private boolean mFixedPoint;
+	private boolean mBatched;
+	private int mPyramidFactor;
+	private int mSeedSpacing;	//-1 for every row as a seed
+	private boolean mConvergenceStop;
+	private boolean mBanded;
+	private SearchOptions mSearchOptions;	//built from the flags above once they are parsed
+	private boolean mDeskew;
+	private int[] mCrop;		//left, top, right, bottom in source pixels, or null for the whole image
+	private long mMaxPixels;	//images or crops bigger than this are decoded subsampled, 0 for no limit
+	private boolean mOverlay;
+	private BilevelWriter.Format mOutputFormat;	//null for png
+	private final OutputQueue mOutput;
+	private int mStripHeight;
+	private ResultCache mCache;
+	private boolean mMetricsJson;
+
+	public BatchProcessor(File outputDir)
+	{
+		mOutputDir = outputDir;
+		mSearchExecutor = null;
+		mSearchThreads = 1;
+		mLowMemory = false;
+		mFixedPoint = false;
+		mBatched = false;
+		mPyramidFactor = 1;
+		mSeedSpacing = -1;
+		mConvergenceStop = false;
+		mBanded = false;
+		mSearchOptions = new SearchOptions();
+		mDeskew = false;
+		mCrop = null;
+		mMaxPixels = 0;
+		mOverlay = false;
+		mOutputFormat = null;
+		mOutput = new OutputQueue("BatchOutput", OUTPUT_QUEUE_LENGTH);
+		mStripHeight = 0;
+		mCache = null;
+		mMetricsJson = false;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length < 2)
+		{
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+
+		File inputDir = new File(args[0]);
+		File outputDir = new File(args[1]);
+		BatchProcessor processor = new BatchProcessor(outputDir);
+		int threads = 1;
+		for(int i=2; i<args.length; ++i)
+		{
+			if(args[i].equals("--threads") && i+1 < args.length)
+				threads = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--search-threads") && i+1 < args.length)
+				processor.mSearchThreads = Math.max(1, Integer.parseInt(args[++i]));
+			else if(args[i].equals("--low-memory"))
+				processor.mLowMemory = true;
+			else if(args[i].equals("--fixed-point"))
+				processor.mFixedPoint = true;
+			else if(args[i].equals("--batched"))
+				processor.mBatched = true;
+			else if(args[i].equals("--pyramid") && i+1 < args.length)
+				processor.mPyramidFactor = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--histogram-seeding") && i+1 < args.length)
+				processor.mSeedSpacing = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--convergence-stop"))
+				processor.mConvergenceStop = true;
+			else if(args[i].equals("--banded"))
+				processor.mBanded = true;
+			else if(args[i].equals("--deskew"))
+				processor.mDeskew = true;
+			else if(args[i].equals("--crop") && i+1 < args.length)
+				processor.mCrop = parseCrop(args[++i]);
+			else if(args[i].equals("--max-pixels") && i+1 < args.length)
+				processor.mMaxPixels = Long.parseLong(args[++i]);
+			else if(args[i].equals("--overlay"))
+				processor.mOverlay = true;
+			else if(args[i].equals("--output-format") && i+1 < args.length)
+			{
+				String format = args[++i];
+				processor.mOutputFormat = format.equalsIgnoreCase("png") ? null : BilevelWriter.Format.fromName(format);
+			}
+			else if(args[i].equals("--strip-height") && i+1 < args.length)
+				processor.mStripHeight = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--cache") && i+1 < args.length)
+				processor.mCache = new ResultCache(CACHE_MEMORY_BYTES, new File(args[++i]), CACHE_DISK_BYTES);
+			else if(args[i].equals("--metrics-json"))
+				processor.mMetricsJson = true;
+			else
+			{
+				System.err.println(USAGE);
+				System.exit(1);
+			}
+		}
+
+		//the pyramid search picks its own seeds and runs on one thread, these would be silently ignored
+		if(processor.mPyramidFactor > 1 && (processor.mSeedSpacing >= 0 || processor.mConvergenceStop || processor.mSearchThreads > 1 || processor.mBatched))
+		{
+			System.err.println("--pyramid can't be combined with --histogram-seeding, --convergence-stop, --search-threads or --batched");
+			System.exit(1);
+		}
+
+		//the batched search runs on one thread with float costs and never merges or bands its paths
+		if(processor.mBatched && (processor.mConvergenceStop || processor.mSearchThreads > 1 || processor.mFixedPoint || processor.mBanded))
+		{
+			System.err.println("--batched can't be combined with --convergence-stop, --search-threads, --fixed-point or --banded");
+			System.exit(1);
+		}
+
+		//strip mode never holds the page and only runs the low memory per row search, so these have nothing to work on
+		if(processor.mStripHeight > 0 && (processor.mCache != null || processor.mDeskew || processor.mFixedPoint
+				|| processor.mBatched || processor.mPyramidFactor > 1 || processor.mSeedSpacing >= 0 || processor.mConvergenceStop
+				|| processor.mBanded || processor.mCrop != null || processor.mMaxPixels > 0 || processor.mOverlay))
+		{
+			System.err.println("--strip-height can't be combined with --cache, --deskew, --fixed-point, --batched, --pyramid, "
+					+ "--histogram-seeding, --convergence-stop, --banded, --crop, --max-pixels or --overlay");
+			System.exit(1);
+		}
+		processor.mSearchOptions = new SearchOptions().setBatchedSearch(processor.mBatched)
+				.setHistogramSeeding(processor.mSeedSpacing >= 0, processor.mSeedSpacing).setConvergenceStop(processor.mConvergenceStop)
+				.setBandedSearch(processor.mBanded).setFixedPointCosts(processor.mFixedPoint).setPyramidSearch(processor.mPyramidFactor);
+
+		JvmAllocationCounter.install();
+		File[] images = listImages(inputDir);
+		if(images.length == 0)
+		{
+			System.err.println("no images found in " + inputDir);
+			System.exit(1);
+		}
+		if(!outputDir.isDirectory() && !outputDir.mkdirs())
+		{
+			System.err.println("could not create " + outputDir);
+			System.exit(1);
+		}
+
+		if(processor.mSearchThreads > 1)
+			processor.mSearchExecutor = Executors.newFixedThreadPool(processor.mSearchThreads);
+		long start = System.nanoTime();
+		List<String> rows;
+		try
+		{
+			rows = processor.processAll(images, threads);
+		}
+		finally
+		{
+			if(processor.mSearchExecutor != null)
+				processor.mSearchExecutor.shutdownNow();
+		}
+		processor.mOutput.shutdown();
+		long elapsedMs = (System.nanoTime() - start)/1000000;
+
+		PrintWriter csv = new PrintWriter(new FileWriter(new File(outputDir, "metrics.csv")));
+		try
+		{
+			csv.println("image,width,height,line_thickness,line_spacing,staff_lines,staffs,stable_paths,millis");
+			for(String row : rows)
+				csv.println(row);
+		}
+		finally
+		{
+			csv.close();
+		}
+
+		System.out.println(images.length + " images in " + elapsedMs + " ms");
+		if(processor.mOutput.getFailedJobs() > 0)
+		{
+			System.err.println(processor.mOutput.getFailedJobs() + " output files could not be written");
+			System.exit(1);
+		}
+	}
+
+	public static File[] listImages(File dir)
+	{
+		File[] files = dir.listFiles();
+		if(files == null)
+			return new File[0];
+
+		List<File> images = new ArrayList<File>();
+		for(File f : files)
+		{
+			String name = f.getName().toLowerCase(Locale.US);
+			if(f.isFile() && (name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".bmp")))
+				images.add(f);
+		}
+		File[] sorted = images.toArray(new File[images.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	//processes the images on a pool of threads and returns one csv row per image, in input order
+	public List<String> processAll(File[] images, int threads) throws InterruptedException, IOException
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try
+		{
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for(final File image : images)
+			{
+				results.add(pool.submit(new Callable<String>()
+				{
+					@Override
+					public String call() throws IOException, InterruptedException
+					{
+						return process(image);
+					}
+				}));
+			}
+
+			List<String> rows = new ArrayList<String>();
+			for(Future<String> result : results)
+			{
+				try
+				{
+					rows.add(result.get());
+				}
+				catch(ExecutionException e)
+				{
+					if(e.getCause() instanceof IOException)
+						throw (IOException)e.getCause();
+					throw new RuntimeException(e.getCause());
+				}
+			}
+			return rows;
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	//the analysis runs on the calling thread, the output files are written on mOutput's, so the next image can be
+	// read and analyzed while this one is encoded
+	public String process(File imageFile) throws IOException, InterruptedException
+	{
+		if(mStripHeight > 0)
+			return processInStrips(imageFile);
+		
+		long start = System.nanoTime();
+		int[] dims = new int[2];
+		int[] argb = readImage(imageFile, dims);
+		final int w = dims[0];
+		final int h = dims[1];
+
+		PipelineMetrics metrics = new PipelineMetrics();
+		String key = null;
+		AnalysisResult result = null;
+		if(mCache != null)
+		{
+			metrics.startStage("cacheLookup");
+			key = ResultCache.keyFor(argb, w, h, "binarizer=java;" + (mDeskew ? "deskew;" : "") + mSearchOptions.getKey());
+			result = mCache.get(key);
+			metrics.endStage();
+		}
+		if(result == null)
+		{
+			metrics.startStage("binarize");
+			byte[] pixels = Binarizer.binarize(argb, w, h);
+			if(mDeskew)
+			{
+				metrics.startStage("deskew");
+				SkewEstimator.deskew(pixels, w, h);
+			}
+			metrics.endStage();
+			StaffAnalyzer staffInfo = new StaffAnalyzer(pixels, w, h);
+			staffInfo.setLowMemorySearch(mLowMemory);
+			if(mSearchExecutor != null)
+				staffInfo.setParallelSearch(mSearchExecutor, mSearchThreads);
+			staffInfo.setSearchOptions(mSearchOptions);
+			staffInfo.setMetrics(metrics);
+			staffInfo.processImage();
+			staffInfo.removeStaffLines();
+			result = AnalysisResult.from(staffInfo, true);
+			if(mCache != null)
+				mCache.put(key, result);
+		}
+		long elapsedMs = (System.nanoTime() - start)/1000000;
+
+		final String name = baseName(imageFile);
+		final AnalysisResult finalResult = result;
+		if(mOutputFormat != null)
+		{
+			//bilevel output is written straight from the cleaned pixels, the overlay needs color so it is left out
+			final BilevelWriter.Format format = mOutputFormat;
+			mOutput.submit(name + "_clean." + format.getExtension(), new OutputQueue.Job()
+			{
+				@Override
+				public void write() throws IOException
+				{
+					BilevelWriter.write(finalResult.getCleanedPixels(), w, h, format, new File(mOutputDir, name + "_clean." + format.getExtension()));
+				}
+			});
+		}
+		else
+		{
+			//the input argb buffer is done with, so it doubles as the render buffer
+			if(mOverlay)
+				argb = StaffRenderer.renderProcessed(result, argb, new Random(0));
+			else
+				argb = StaffRenderer.renderProcessed(result, argb, null);
+			final int[] rendered = argb;
+			mOutput.submit(name + "_clean.png", new OutputQueue.Job()
+			{
+				@Override
+				public void write() throws IOException
+				{
+					ImageFiles.write(rendered, w, h, "png", new File(mOutputDir, name + "_clean.png"));
+				}
+			});
+		}
+		mOutput.submit(name + ".msr", new OutputQueue.Job()
+		{
+			@Override
+			public void write() throws IOException
+			{
+				StaffResultWriter.write(finalResult, new File(mOutputDir, name + ".msr"));
+			}
+		});
+		if(mMetricsJson)
+		{
+			final PipelineMetrics.Snapshot snapshot = metrics.snapshot();
+			mOutput.submit(name + "_metrics.json", new OutputQueue.Job()
+			{
+				@Override
+				public void write() throws IOException
+				{
+					snapshot.writeJson(new File(mOutputDir, name + "_metrics.json"));
+				}
+			});
+		}
+
+		return imageFile.getName() + "," + w + "," + h + ","
+				+ result.getStaffLineSize() + "," + result.getStaffSpaceSize() + ","
+				+ result.getTotalStaffLines() + "," + result.getNumStaffs() + ","
+				+ result.getStablePaths().size() + "," + elapsedMs;
+	}
+
+	//the whole image, or with --crop or --max-pixels only the region at the sample size CropRegion picks
+	private int[] readImage(File imageFile, int[] dims) throws IOException
+	{
+		if(mCrop == null && mMaxPixels <= 0)
+			return ImageFiles.readArgb(imageFile, dims);
+
+		ImageFiles.readSize(imageFile, dims);
+		CropRegion region = CropRegion.full(dims[0], dims[1]);
+		if(mCrop != null)
+		{
+			int left = Math.max(0, Math.min(dims[0]-1, mCrop[0]));
+			int top = Math.max(0, Math.min(dims[1]-1, mCrop[1]));
+			region = new CropRegion(left, top, Math.max(left+1, Math.min(dims[0], mCrop[2])), Math.max(top+1, Math.min(dims[1], mCrop[3])));
+		}
+		int sampleSize = (mMaxPixels > 0) ? region.getSampleSize(mMaxPixels) : 1;
+		return ImageFiles.readArgb(imageFile, region, sampleSize, dims);
+	}
+
+	private static int[] parseCrop(String arg)
+	{
+		String[] parts = arg.split(",");
+		if(parts.length != 4)
+			throw new IllegalArgumentException("--crop needs left,top,right,bottom");
+		int[] crop = new int[4];
+		for(int i=0; i<4; ++i)
+			crop[i] = Integer.parseInt(parts[i].trim());
+		return crop;
+	}
+
+	//bounded memory version: the image is never decoded whole, and the cleaned page is streamed out in the bilevel
+	// output format, PBM unless --output-format picks another. the rows are written as the strips finish, on this thread
+	public String processInStrips(File imageFile) throws IOException
+	{
+		ImageIOStripSource source = new ImageIOStripSource(imageFile);
+		BilevelStripSink sink = null;
+		try
+		{
+			final int w = source.getWidth();
+			final int h = source.getHeight();
+			BilevelWriter.Format format = (mOutputFormat != null) ? mOutputFormat : BilevelWriter.Format.PBM;
+			sink = new BilevelStripSink(new File(mOutputDir, baseName(imageFile) + "_clean." + format.getExtension()), format, w, h);
+
+			long start = System.nanoTime();
+			StripAnalyzer analyzer = new StripAnalyzer(source, mStripHeight, 0);
+			if(mSearchExecutor != null)
+				analyzer.setParallelSearch(mSearchExecutor, mSearchThreads);
+			analyzer.setStripSink(sink);
+			analyzer.process();
+			long elapsedMs = (System.nanoTime() - start)/1000000;
+			if(mMetricsJson)
+				analyzer.getMetrics().snapshot().writeJson(new File(mOutputDir, baseName(imageFile) + "_metrics.json"));
+
+			StaffLineStats stats = analyzer.getLineStats();
+			return imageFile.getName() + "," + w + "," + h + ","
+					+ stats.getStaffLineSize() + "," + stats.getStaffSpaceSize() + ","
+					+ stats.getTotalStaffLines() + "," + stats.getNumStaffs() + ","
+					+ analyzer.getStablePaths().size() + "," + elapsedMs;
+		}
+		finally
+		{
+			if(sink != null)
+				sink.close();
+			source.close();
+		}
+	}
+
+	private static String baseName(File f)
+	{
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+		return (dot > 0) ? name.substring(0, dot) : name;
+	}
+}
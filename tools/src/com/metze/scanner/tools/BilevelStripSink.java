@@ -0,0 +1,30 @@
+package com.metze.scanner.tools;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.metze.scanner.core.BilevelWriter;
+import com.metze.scanner.core.StripAnalyzer;
+
+//streams a cleaned page into a PBM, PGM or RLE file (BilevelWriter) as the strips arrive.
+// foreground pixels are written as ink, which shows black
+public class BilevelStripSink implements StripAnalyzer.StripSink
+{
+	private final BilevelWriter mWriter;
+
+	public BilevelStripSink(File file, BilevelWriter.Format format, int w, int h) throws IOException
+	{
+		mWriter = new BilevelWriter(file, format, w, h);
+	}
+
+	@Override
+	public void writeRows(int y, int rows, byte[] pixels, int offset) throws IOException
+	{
+		mWriter.writeRows(pixels, offset, rows);
+	}
+
+	public void close() throws IOException
+	{
+		mWriter.close();
+	}
+}
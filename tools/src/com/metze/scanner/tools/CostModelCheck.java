@@ -0,0 +1,189 @@
+package com.metze.scanner.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import com.metze.scanner.core.Binarizer;
+import com.metze.scanner.core.StaffAnalyzer;
+
+//runs every image of a directory through StaffAnalyzer twice, once with the float costs and once with
+// setFixedPointCosts, and reports where the two disagree: staff measurements, stable paths and the cleaned image.
+//   java -cp out com.metze.scanner.tools.CostModelCheck res/raw [--convergence-stop] [--pyramid factor] [--verbose]
+// exits with 1 if any image differs, so it can gate a change to either cost model
+public class CostModelCheck
+{
+	private static final String USAGE = "usage: CostModelCheck <input dir> [--convergence-stop] [--pyramid factor] [--verbose]";
+
+	private boolean mConvergenceStop;
+	private int mPyramidFactor;
+	private boolean mVerbose;
+
+	public CostModelCheck()
+	{
+		mConvergenceStop = false;
+		mPyramidFactor = 1;
+		mVerbose = false;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length < 1)
+		{
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+
+		CostModelCheck check = new CostModelCheck();
+		for(int i=1; i<args.length; ++i)
+		{
+			if(args[i].equals("--convergence-stop"))
+				check.mConvergenceStop = true;
+			else if(args[i].equals("--pyramid") && i+1 < args.length)
+				check.mPyramidFactor = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--verbose"))
+				check.mVerbose = true;
+			else
+			{
+				System.err.println(USAGE);
+				System.exit(1);
+			}
+		}
+
+		if(check.mPyramidFactor > 1 && check.mConvergenceStop)
+		{
+			System.err.println("--pyramid can't be combined with --convergence-stop, the pyramid search ignores it");
+			System.exit(1);
+		}
+
+		File[] files = new File(args[0]).listFiles();
+		if(files == null)
+			throw new IOException("can't list " + args[0]);
+		Arrays.sort(files);
+
+		int images = 0;
+		int differing = 0;
+		for(File file : files)
+		{
+			String name = file.getName().toLowerCase(Locale.US);
+			if(!name.endsWith(".png") && !name.endsWith(".jpg") && !name.endsWith(".jpeg"))
+				continue;
+			++images;
+			if(!check.compare(file))
+				++differing;
+		}
+
+		System.out.println(images + " images, " + differing + " differ");
+		System.exit(differing == 0 ? 0 : 1);
+	}
+
+	//true if both cost models give the same result for the image
+	private boolean compare(File imageFile) throws IOException
+	{
+		int[] dims = new int[2];
+		int[] argb = ImageFiles.readArgb(imageFile, dims);
+		final int w = dims[0];
+		final int h = dims[1];
+		byte[] pixels = Binarizer.binarize(argb, w, h);
+
+		long start = System.nanoTime();
+		StaffAnalyzer floatCosts = analyze(pixels, w, h, false);
+		long floatNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		StaffAnalyzer fixedPoint = analyze(pixels, w, h, true);
+		long fixedNanos = System.nanoTime() - start;
+
+		List<int[]> floatPaths = floatCosts.getStablePaths();
+		List<int[]> fixedPaths = fixedPoint.getStablePaths();
+		int unmatched = countUnmatched(floatPaths, fixedPaths) + countUnmatched(fixedPaths, floatPaths);
+		boolean sameStats = floatCosts.getStaffLineSize() == fixedPoint.getStaffLineSize()
+				&& floatCosts.getStaffSpaceSize() == fixedPoint.getStaffSpaceSize()
+				&& floatCosts.getTotalStaffLines() == fixedPoint.getTotalStaffLines();
+		boolean sameImage = Arrays.equals(floatCosts.getPixels(), fixedPoint.getPixels());
+		boolean same = sameStats && unmatched == 0 && sameImage;
+
+		StringBuilder line = new StringBuilder(String.format(Locale.US, "%-18s %5dx%-5d paths=%d/%d float=%.1fms fixed=%.1fms %s",
+				imageFile.getName(), w, h, floatPaths.size(), fixedPaths.size(), floatNanos/1e6, fixedNanos/1e6,
+				same ? "same" : "DIFFERENT"));
+		if(!same)
+		{
+			line.append(" unmatched_paths=").append(unmatched);
+			if(!sameStats)
+				line.append(" stats");
+			if(!sameImage)
+				line.append(" cleaned_image");
+		}
+		System.out.println(line);
+
+		if(mVerbose && unmatched > 0)
+			printDeviations(floatCosts, floatPaths, fixedPaths);
+		return same;
+	}
+
+	private StaffAnalyzer analyze(byte[] binary, int w, int h, boolean fixedPoint)
+	{
+		StaffAnalyzer staffInfo = new StaffAnalyzer(Arrays.copyOf(binary, binary.length), w, h);
+		staffInfo.setLowMemorySearch(true);
+		staffInfo.setFixedPointCosts(fixedPoint);
+		staffInfo.setConvergenceStop(mConvergenceStop);
+		staffInfo.setPyramidSearch(mPyramidFactor);
+		staffInfo.processImage();
+		staffInfo.removeStaffLines();
+		return staffInfo;
+	}
+
+	//paths of a with no identical path in b
+	private static int countUnmatched(List<int[]> a, List<int[]> b)
+	{
+		int unmatched = 0;
+		for(int[] path : a)
+		{
+			boolean found = false;
+			for(int[] other : b)
+			{
+				if(Arrays.equals(path, other))
+				{
+					found = true;
+					break;
+				}
+			}
+			if(!found)
+				++unmatched;
+		}
+		return unmatched;
+	}
+
+	//for each float path with no exact match, how far the closest fixed point path strays from it
+	private static void printDeviations(StaffAnalyzer staffInfo, List<int[]> floatPaths, List<int[]> fixedPaths)
+	{
+		int left = staffInfo.getPathLeftBound();
+		int right = staffInfo.getPathRightBound();
+		for(int[] path : floatPaths)
+		{
+			int bestMax = Integer.MAX_VALUE;
+			int bestColumns = 0;
+			for(int[] other : fixedPaths)
+			{
+				int max = 0;
+				int columns = 0;
+				for(int x=left; x<right; ++x)
+				{
+					int d = Math.abs(path[x] - other[x]);
+					max = Math.max(max, d);
+					if(d != 0)
+						++columns;
+				}
+				if(max < bestMax)
+				{
+					bestMax = max;
+					bestColumns = columns;
+				}
+			}
+			if(bestMax > 0)
+				System.out.println(String.format(Locale.US, "    path from row %d: closest fixed point path is off by up to %d rows in %d columns",
+						path[left], bestMax, bestColumns));
+		}
+	}
+}
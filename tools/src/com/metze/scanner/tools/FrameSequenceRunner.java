@@ -0,0 +1,190 @@
+package com.metze.scanner.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import com.metze.scanner.core.FrameProcessor;
+
+//headless stand-in for the live preview: plays the images of a directory as a frame sequence into a FrameProcessor
+// and reports the sustained frame rate, dropped frames and latency. frames are decoded up front, so the run
+// measures processing and not image decoding.
+//   java -cp out com.metze.scanner.tools.FrameSequenceRunner res/raw [--fps 30] [--frames 300] [--budget 33] [--min-scale 1]
+// --fps is the rate frames are submitted at, like a camera delivering preview frames, 0 submits as fast as possible
+public class FrameSequenceRunner
+{
+	private static final String USAGE = "usage: FrameSequenceRunner <input dir> [--fps n] [--frames n] [--budget ms] [--min-scale n] [--verbose]";
+
+	private static class Frame
+	{
+		final String name;
+		final byte[] luma;
+		final int width;
+		final int height;
+
+		Frame(String name, byte[] luma, int width, int height)
+		{
+			this.name = name;
+			this.luma = luma;
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		if(args.length < 1)
+		{
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+
+		int fps = 30;
+		int frameCount = 300;
+		long budgetMillis = 33;
+		int minScale = 1;
+		boolean verbose = false;
+		for(int i=1; i<args.length; ++i)
+		{
+			if(args[i].equals("--fps") && i+1 < args.length)
+				fps = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--frames") && i+1 < args.length)
+				frameCount = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--budget") && i+1 < args.length)
+				budgetMillis = Long.parseLong(args[++i]);
+			else if(args[i].equals("--min-scale") && i+1 < args.length)
+				minScale = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--verbose"))
+				verbose = true;
+			else
+			{
+				System.err.println(USAGE);
+				System.exit(1);
+			}
+		}
+
+		List<Frame> frames = loadFrames(new File(args[0]));
+		if(frames.isEmpty())
+		{
+			System.err.println("no images in " + args[0]);
+			System.exit(1);
+		}
+
+		final List<FrameProcessor.FrameResult> results = new ArrayList<FrameProcessor.FrameResult>();
+		final boolean printEach = verbose;
+		FrameProcessor processor = new FrameProcessor(new FrameProcessor.Listener()
+		{
+			@Override
+			public void onFrame(FrameProcessor.FrameResult result)
+			{
+				synchronized(results)
+				{
+					results.add(result);
+				}
+				if(printEach)
+				{
+					System.out.println(String.format(Locale.US, "frame %dx%d scale=%d lines=%d staffs=%d processing=%.1fms latency=%.1fms",
+							result.getWidth(), result.getHeight(), result.getScale(), result.getLineRows().length,
+							result.getNumStaffs(), result.getProcessingNanos()/1e6, result.getLatencyNanos()/1e6));
+				}
+			}
+		}, budgetMillis, minScale);
+
+		processor.start();
+		long intervalNanos = (fps > 0) ? 1000000000L/fps : 0;
+		long start = System.nanoTime();
+		for(int i=0; i<frameCount; ++i)
+		{
+			if(intervalNanos > 0)
+			{
+				long due = start + i*intervalNanos;
+				long wait = due - System.nanoTime();
+				if(wait > 0)
+					Thread.sleep(wait/1000000, (int)(wait%1000000));
+			}
+			Frame frame = frames.get(i % frames.size());
+			processor.submit(frame.luma, frame.width, frame.height, System.nanoTime());
+		}
+		//give the last frame the time a real source would, then stop
+		Thread.sleep(Math.max(intervalNanos/1000000, budgetMillis));
+		processor.stop();
+		long end = System.nanoTime();
+
+		report(processor, results, (end-start)/1e9);
+	}
+
+	private static List<Frame> loadFrames(File dir) throws IOException
+	{
+		File[] files = dir.listFiles();
+		if(files == null)
+			throw new IOException("can't list " + dir);
+		Arrays.sort(files);
+
+		List<Frame> frames = new ArrayList<Frame>();
+		int[] dims = new int[2];
+		for(File file : files)
+		{
+			String name = file.getName().toLowerCase(Locale.US);
+			if(!name.endsWith(".png") && !name.endsWith(".jpg") && !name.endsWith(".jpeg"))
+				continue;
+
+			int[] argb = ImageFiles.readArgb(file, dims);
+			frames.add(new Frame(file.getName(), toLuma(argb), dims[0], dims[1]));
+		}
+		return frames;
+	}
+
+	//the same fixed point weights as Binarizer, which match cvtColor
+	private static byte[] toLuma(int[] argb)
+	{
+		byte[] luma = new byte[argb.length];
+		for(int i=0; i<argb.length; ++i)
+		{
+			int c = argb[i];
+			luma[i] = (byte)((((c >> 16) & 0xff)*4899 + ((c >> 8) & 0xff)*9617 + (c & 0xff)*1868 + 8192) >> 14);
+		}
+		return luma;
+	}
+
+	private static void report(FrameProcessor processor, List<FrameProcessor.FrameResult> results, double seconds)
+	{
+		long[] latencies = new long[results.size()];
+		long processingTotal = 0;
+		int[] scaleFrames = new int[FrameProcessor.MAX_SCALE+1];
+		for(int i=0; i<results.size(); ++i)
+		{
+			FrameProcessor.FrameResult result = results.get(i);
+			latencies[i] = result.getLatencyNanos();
+			processingTotal += result.getProcessingNanos();
+			scaleFrames[result.getScale()]++;
+		}
+		Arrays.sort(latencies);
+
+		System.out.println(String.format(Locale.US, "submitted=%d processed=%d dropped=%d seconds=%.2f fps=%.1f",
+				processor.getSubmittedFrames(), processor.getProcessedFrames(), processor.getDroppedFrames(),
+				seconds, processor.getProcessedFrames()/seconds));
+		if(latencies.length == 0)
+			return;
+
+		System.out.println(String.format(Locale.US, "latency ms p50=%.1f p95=%.1f max=%.1f, processing ms mean=%.1f, final scale=%d",
+				percentile(latencies, 0.5)/1e6, percentile(latencies, 0.95)/1e6, latencies[latencies.length-1]/1e6,
+				processingTotal/1e6/latencies.length, processor.getScale()));
+
+		StringBuilder scales = new StringBuilder("frames per scale");
+		for(int s=1; s<scaleFrames.length; ++s)
+		{
+			if(scaleFrames[s] > 0)
+				scales.append(' ').append(s).append('=').append(scaleFrames[s]);
+		}
+		System.out.println(scales);
+	}
+
+	private static long percentile(long[] sorted, double fraction)
+	{
+		int index = (int)Math.min(sorted.length-1, Math.round(fraction*(sorted.length-1)));
+		return sorted[index];
+	}
+}
@@ -0,0 +1,98 @@
+package com.metze.scanner.tools;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.metze.scanner.core.CropRegion;
+
+//JVM side image file helpers, the headless counterpart of committing a StaffRenderer buffer to a Bitmap
+public class ImageFiles
+{
+	//reads an image as packed ARGB, dims receives {width, height}
+	public static int[] readArgb(File file, int[] dims) throws IOException
+	{
+		BufferedImage image = ImageIO.read(file);
+		if(image == null)
+			throw new IOException("unsupported image " + file);
+
+		dims[0] = image.getWidth();
+		dims[1] = image.getHeight();
+		return image.getRGB(0, 0, dims[0], dims[1], null, 0, dims[0]);
+	}
+
+	//reads only the given region of an image, every sampleSize-th pixel in each direction, as packed ARGB.
+	// the reader skips what lies outside the region, so the whole image is never held. dims receives {width, height}
+	public static int[] readArgb(File file, CropRegion region, int sampleSize, int[] dims) throws IOException
+	{
+		ImageInputStream stream = ImageIO.createImageInputStream(file);
+		if(stream == null)
+			throw new IOException("could not open " + file);
+		try
+		{
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if(!readers.hasNext())
+				throw new IOException("unsupported image " + file);
+			ImageReader reader = readers.next();
+			try
+			{
+				reader.setInput(stream, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(new Rectangle(region.getLeft(), region.getTop(), region.getWidth(), region.getHeight()));
+				param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+				BufferedImage image = reader.read(0, param);
+
+				dims[0] = image.getWidth();
+				dims[1] = image.getHeight();
+				return image.getRGB(0, 0, dims[0], dims[1], null, 0, dims[0]);
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	//size of an image without decoding it, dims receives {width, height}
+	public static void readSize(File file, int[] dims) throws IOException
+	{
+		ImageInputStream stream = ImageIO.createImageInputStream(file);
+		if(stream == null)
+			throw new IOException("could not open " + file);
+		try
+		{
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if(!readers.hasNext())
+				throw new IOException("unsupported image " + file);
+			ImageReader reader = readers.next();
+			reader.setInput(stream, true, true);
+			dims[0] = reader.getWidth(0);
+			dims[1] = reader.getHeight(0);
+			reader.dispose();
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	//writes an ARGB buffer with one bulk copy into the image raster
+	public static void write(int[] argb, int w, int h, String format, File file) throws IOException
+	{
+		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, w, h, argb, 0, w);
+		if(!ImageIO.write(image, format, file))
+			throw new IOException("no " + format + " writer available");
+	}
+}
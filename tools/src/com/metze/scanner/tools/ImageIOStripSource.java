@@ -0,0 +1,129 @@
+package com.metze.scanner.tools;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.metze.scanner.core.StripAnalyzer;
+
+//reads an image file a band of rows at a time, so the whole image is never held as pixels.
+// non interlaced PNGs are decoded top to bottom once (PngRowDecoder). the rows of the bands so far are held, up to twice
+// the tallest band's rows, so overlapping bands and StripAnalyzer's growing search windows are served from them, and
+// only a band that starts further up than that decodes from the top again. other images are read through ImageIO's
+// source region support, which for most formats decodes everything above the band again on every call
+public class ImageIOStripSource implements StripAnalyzer.StripSource
+{
+	private final ImageInputStream mStream;
+	private final ImageReader mReader;
+	private final int mWidth;
+	private final int mHeight;
+
+	private final PngRowDecoder mDecoder;		//null if the file goes through ImageIO
+	private int[] mHeldRows;		//row y is at (y % mHeldCapacity)*mWidth
+	private int mHeldCapacity;
+	private int mHeldFrom;			//first held row, rows mHeldFrom up to the decoder's next row are held
+
+	public ImageIOStripSource(File file) throws IOException
+	{
+		mStream = ImageIO.createImageInputStream(file);
+		if(mStream == null)
+			throw new IOException("could not open " + file);
+
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(mStream);
+		if(!readers.hasNext())
+		{
+			mStream.close();
+			throw new IOException("unsupported image " + file);
+		}
+		mReader = readers.next();
+		mReader.setInput(mStream, false, true);
+		mWidth = mReader.getWidth(0);
+		mHeight = mReader.getHeight(0);
+
+		PngRowDecoder decoder = null;
+		if("png".equalsIgnoreCase(mReader.getFormatName()))
+			decoder = PngRowDecoder.open(file, mReader.getImageTypes(0).next());
+		if(decoder != null && (decoder.getWidth() != mWidth || decoder.getHeight() != mHeight))
+		{
+			decoder.close();
+			decoder = null;
+		}
+		mDecoder = decoder;
+		mHeldRows = null;
+		mHeldCapacity = 0;
+		mHeldFrom = 0;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+	@Override
+	public void readRows(int y, int rows, int[] argb) throws IOException
+	{
+		if(mDecoder != null)
+		{
+			readDecodedRows(y, rows, argb);
+			return;
+		}
+		ImageReadParam param = mReader.getDefaultReadParam();
+		param.setSourceRegion(new Rectangle(0, y, mWidth, rows));
+		BufferedImage band = mReader.read(0, param);
+		band.getRGB(0, 0, mWidth, rows, argb, 0, mWidth);
+	}
+
+	private void readDecodedRows(int y, int rows, int[] argb) throws IOException
+	{
+		int capacity = Math.min(2*rows, mHeight);
+		if(capacity > mHeldCapacity)
+			growHeldRows(capacity);
+		if(y < mHeldFrom)
+		{
+			mDecoder.restart();
+			mHeldFrom = 0;
+		}
+		while(mDecoder.getNextRow() < y+rows)
+		{
+			int next = mDecoder.getNextRow();
+			mDecoder.readRow(mHeldRows, (next % mHeldCapacity)*mWidth);
+			mHeldFrom = Math.max(mHeldFrom, next+1 - mHeldCapacity);
+		}
+		for(int i=0; i<rows; ++i)
+			System.arraycopy(mHeldRows, ((y+i) % mHeldCapacity)*mWidth, argb, i*mWidth, mWidth);
+	}
+
+	//keeps the rows held so far
+	private void growHeldRows(int capacity)
+	{
+		int[] held = new int[capacity*mWidth];
+		int next = mDecoder.getNextRow();
+		mHeldFrom = Math.max(mHeldFrom, next - mHeldCapacity);
+		for(int row=mHeldFrom; row<next; ++row)
+			System.arraycopy(mHeldRows, (row % mHeldCapacity)*mWidth, held, (row % capacity)*mWidth, mWidth);
+		mHeldRows = held;
+		mHeldCapacity = capacity;
+	}
+
+	public void close() throws IOException
+	{
+		if(mDecoder != null)
+			mDecoder.close();
+		mReader.dispose();
+		mStream.close();
+	}
+}
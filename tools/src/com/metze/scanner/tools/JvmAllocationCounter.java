@@ -0,0 +1,39 @@
+package com.metze.scanner.tools;
+
+import java.lang.management.ManagementFactory;
+
+import com.metze.scanner.core.PipelineMetrics;
+
+//per thread allocated bytes from the HotSpot ThreadMXBean, for PipelineMetrics on a desktop JVM
+public class JvmAllocationCounter implements PipelineMetrics.AllocationCounter
+{
+	private final com.sun.management.ThreadMXBean mThreads;
+
+	private JvmAllocationCounter(com.sun.management.ThreadMXBean threads)
+	{
+		mThreads = threads;
+	}
+
+	//installs the counter if this JVM supports it, returns false if allocation stays unmeasured
+	public static boolean install()
+	{
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean))
+			return false;
+
+		com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean)threads;
+		if(!hotspot.isThreadAllocatedMemorySupported())
+			return false;
+		if(!hotspot.isThreadAllocatedMemoryEnabled())
+			hotspot.setThreadAllocatedMemoryEnabled(true);
+
+		PipelineMetrics.setAllocationCounter(new JvmAllocationCounter(hotspot));
+		return true;
+	}
+
+	@Override
+	public long allocatedBytes()
+	{
+		return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,314 @@
+package com.metze.scanner.tools;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageTypeSpecifier;
+
+//decodes a non interlaced PNG top to bottom one row at a time, holding one row of samples and the inflater's window.
+// ImageIO's PNG reader can only start at the top of the file, so reading a band of rows through it decodes every row
+// above the band again. the samples go through the image type ImageIO would decode into, so the ARGB values are
+// exactly those of ImageIO's getRGB, including its gray and palette mappings
+public class PngRowDecoder
+{
+	private static final long SIGNATURE = 0x89504e470d0a1a0aL;
+	private static final int IHDR = 0x49484452;
+	private static final int IDAT = 0x49444154;
+	private static final int IEND = 0x49454e44;
+
+	private final File mFile;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mBitDepth;
+	private final int mRowBytes;
+	private final int mFilterStride;	//bytes per pixel, at least 1, for the filters
+
+	private DataInputStream mChunks;
+	private InflaterInputStream mInflater;
+	private byte[] mPrevRow;
+	private byte[] mCurRow;
+	private int mNextRow;
+
+	private final BufferedImage mRowImage;	//one row in ImageIO's image type, only used for its raster and color model
+	private final WritableRaster mRowRaster;
+	private final int[] mSamples;
+
+	//returns null if the file isn't a PNG this class decodes (interlaced, or ImageIO decodes it into a layout that
+	// doesn't hold the file's samples as they are), type is the first of ImageIO's getImageTypes for it
+	public static PngRowDecoder open(File file, ImageTypeSpecifier type) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if(in.readLong() != SIGNATURE || in.readInt() != 13 || in.readInt() != IHDR)
+				return null;
+			int w = in.readInt();
+			int h = in.readInt();
+			int bitDepth = in.readUnsignedByte();
+			int colorType = in.readUnsignedByte();
+			in.readUnsignedByte();		//compression and filter method, there is only one of each
+			in.readUnsignedByte();
+			int interlace = in.readUnsignedByte();
+
+			int channels;
+			switch(colorType)
+			{
+			case 0: channels = 1; break;
+			case 2: channels = 3; break;
+			case 3: channels = 1; break;
+			case 4: channels = 2; break;
+			case 6: channels = 4; break;
+			default: return null;
+			}
+			if(interlace != 0 || w <= 0 || h <= 0 || type.getSampleModel().getNumBands() != channels)
+				return null;
+			return new PngRowDecoder(file, w, h, bitDepth, channels, type);
+		}
+		catch(EOFException e)
+		{
+			return null;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private PngRowDecoder(File file, int w, int h, int bitDepth, int channels, ImageTypeSpecifier type) throws IOException
+	{
+		mFile = file;
+		mWidth = w;
+		mHeight = h;
+		mBitDepth = bitDepth;
+		int bitsPerPixel = bitDepth*channels;
+		mRowBytes = (w*bitsPerPixel + 7)/8;
+		mFilterStride = Math.max(1, bitsPerPixel/8);
+
+		mRowImage = type.createBufferedImage(w, 1);
+		mRowRaster = mRowImage.getRaster();
+		mSamples = new int[w*channels];
+		restart();
+	}
+
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+	//the row the next readRow returns
+	public int getNextRow()
+	{
+		return mNextRow;
+	}
+
+	//goes back to the top of the image
+	public void restart() throws IOException
+	{
+		close();
+		mChunks = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+		skipFully(8);		//signature
+		mInflater = new InflaterInputStream(new IdatStream());
+		mPrevRow = new byte[mRowBytes];
+		mCurRow = new byte[mRowBytes];
+		mNextRow = 0;
+	}
+
+	//decodes the next row into argb starting at offset
+	public void readRow(int[] argb, int offset) throws IOException
+	{
+		if(mNextRow >= mHeight)
+			throw new IOException("read past the last row of " + mFile);
+
+		int filter = mInflater.read();
+		if(filter < 0)
+			throw new EOFException("image data of " + mFile + " ends at row " + mNextRow);
+		int n = 0;
+		while(n < mRowBytes)
+		{
+			int read = mInflater.read(mCurRow, n, mRowBytes-n);
+			if(read < 0)
+				throw new EOFException("image data of " + mFile + " ends at row " + mNextRow);
+			n += read;
+		}
+		unfilter(filter);
+
+		unpackSamples();
+		mRowRaster.setPixels(0, 0, mWidth, 1, mSamples);
+		mRowImage.getRGB(0, 0, mWidth, 1, argb, offset, mWidth);
+
+		byte[] tmp = mPrevRow;
+		mPrevRow = mCurRow;
+		mCurRow = tmp;
+		++mNextRow;
+	}
+
+	public void close() throws IOException
+	{
+		if(mInflater != null)
+			mInflater.close();		//closes mChunks too
+		mInflater = null;
+		mChunks = null;
+	}
+
+	private void unfilter(int filter) throws IOException
+	{
+		byte[] row = mCurRow;
+		byte[] prev = mPrevRow;
+		int bpp = mFilterStride;
+		switch(filter)
+		{
+		case 0:
+			break;
+		case 1:		//sub
+			for(int i=bpp; i<mRowBytes; ++i)
+				row[i] += row[i-bpp];
+			break;
+		case 2:		//up
+			for(int i=0; i<mRowBytes; ++i)
+				row[i] += prev[i];
+			break;
+		case 3:		//average
+			for(int i=0; i<mRowBytes; ++i)
+			{
+				int left = (i >= bpp) ? row[i-bpp] & 0xff : 0;
+				row[i] += (left + (prev[i] & 0xff)) >> 1;
+			}
+			break;
+		case 4:		//paeth
+			for(int i=0; i<mRowBytes; ++i)
+			{
+				int a = (i >= bpp) ? row[i-bpp] & 0xff : 0;
+				int b = prev[i] & 0xff;
+				int c = (i >= bpp) ? prev[i-bpp] & 0xff : 0;
+				int p = a + b - c;
+				int pa = Math.abs(p - a);
+				int pb = Math.abs(p - b);
+				int pc = Math.abs(p - c);
+				if(pa <= pb && pa <= pc)
+					row[i] += a;
+				else if(pb <= pc)
+					row[i] += b;
+				else
+					row[i] += c;
+			}
+			break;
+		default:
+			throw new IOException("unknown filter " + filter + " in row " + mNextRow + " of " + mFile);
+		}
+	}
+
+	private void unpackSamples()
+	{
+		byte[] row = mCurRow;
+		int count = mSamples.length;
+		if(mBitDepth == 8)
+		{
+			for(int i=0; i<count; ++i)
+				mSamples[i] = row[i] & 0xff;
+		}
+		else if(mBitDepth == 16)
+		{
+			for(int i=0; i<count; ++i)
+				mSamples[i] = ((row[2*i] & 0xff) << 8) | (row[2*i+1] & 0xff);
+		}
+		else
+		{
+			//1, 2 or 4 bits, leftmost pixel in the high bits
+			int perByte = 8/mBitDepth;
+			int mask = (1 << mBitDepth) - 1;
+			for(int i=0; i<count; ++i)
+			{
+				int shift = 8 - mBitDepth*(i%perByte + 1);
+				mSamples[i] = (row[i/perByte] >> shift) & mask;
+			}
+		}
+	}
+
+	//the concatenated data of the IDAT chunks, the other chunks are skipped. the palette and transparency are in
+	// ImageIO's color model already
+	private class IdatStream extends InputStream
+	{
+		private int mLeft = 0;		//bytes left in the current IDAT chunk
+		private boolean mSeenIdat = false;
+		private boolean mDone = false;
+		private final byte[] mByte = new byte[1];
+
+		@Override
+		public int read() throws IOException
+		{
+			return (read(mByte, 0, 1) < 0) ? -1 : (mByte[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			while(mLeft == 0)
+			{
+				if(mDone || !nextIdat())
+					return -1;
+			}
+			int read = mChunks.read(b, off, Math.min(len, mLeft));
+			if(read < 0)
+				throw new EOFException("truncated IDAT in " + mFile);
+			mLeft -= read;
+			if(mLeft == 0)
+				mChunks.skipBytes(4);		//crc
+			return read;
+		}
+
+		//moves to the next IDAT chunk, false once the image data has ended
+		private boolean nextIdat() throws IOException
+		{
+			while(true)
+			{
+				int length = mChunks.readInt();
+				int type = mChunks.readInt();
+				if(type == IDAT)
+				{
+					mSeenIdat = true;
+					mLeft = length;
+					if(length == 0)
+						mChunks.skipBytes(4);
+					return true;
+				}
+				//IDAT chunks are consecutive, so any other chunk after them ends the data
+				if(mSeenIdat || type == IEND)
+				{
+					mDone = true;
+					return false;
+				}
+				skipFully(length + 4);
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			mChunks.close();
+		}
+	}
+
+	private void skipFully(int n) throws IOException
+	{
+		while(n > 0)
+		{
+			int skipped = mChunks.skipBytes(n);
+			if(skipped <= 0)
+				throw new EOFException("truncated chunk in " + mFile);
+			n -= skipped;
+		}
+	}
+}